@@ -0,0 +1,28 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+/**
+ * A TLB replacement policy that replaces the entries of each set in turn.
+ */
+public class FifoTLBReplacement implements TLBReplacement {
+    /**
+     * Allocate a new FIFO replacement policy.
+     */
+    public FifoTLBReplacement() {
+    }
+
+    public int chooseVictim(Processor processor, int firstEntry,
+			    int numEntries) {
+	if (next == null)
+	    next = new int[processor.getTLBSize()];
+
+	int victim = next[firstEntry];
+	next[firstEntry] = (victim+1) % numEntries;
+
+	return firstEntry + victim;
+    }
+
+    /** The next entry to replace in each set, indexed by its first entry. */
+    private int[] next = null;
+}
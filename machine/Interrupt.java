@@ -4,9 +4,7 @@ package nachos.machine;
 
 import nachos.security.*;
 
-import java.util.TreeSet;
-import java.util.Iterator;
-import java.util.SortedSet;
+import java.util.Arrays;
 
 /**
  * The <tt>Interrupt</tt> class emulates low-level interrupt hardware. The
@@ -53,7 +51,7 @@ public final class Interrupt {
 	privilege.interrupt = new InterruptPrivilege();
 	
 	enabled = false;
-	pending = new TreeSet<PendingInterrupt>();
+	debugInt = Lib.test(dbgInt);
     }
 
     /**
@@ -120,17 +118,45 @@ public final class Interrupt {
 	return !enabled;
     }
 
+    /**
+     * Advance simulated time to just before the next pending interrupt is
+     * due. Called with interrupts disabled when the only runnable thread is
+     * the idle thread, which would otherwise spend every tick until then
+     * yielding to itself. The time is charged to the kernel in whole
+     * <tt>KernelTick</tt> steps, and the tick that re-enabling interrupts
+     * causes will invoke the handler at exactly the time it would have been
+     * invoked without skipping ahead.
+     */
+    public void idle() {
+	Lib.assertTrue(disabled());
+
+	// leave every tick in place when tracing them
+	if (debugInt)
+	    return;
+
+	Stats stats = privilege.stats;
+	long skipped = ((nextDue - stats.totalTicks - 1) / Stats.KernelTick) *
+	    Stats.KernelTick;
+
+	// if nothing is pending, there is nothing to skip ahead to
+	if (numPending == 0 || skipped <= 0)
+	    return;
+
+	stats.kernelTicks += skipped;
+	stats.totalTicks += skipped;
+    }
+
     private void schedule(long when, String type, Runnable handler) {
 	Lib.assertTrue(when>0);
 	
 	long time = privilege.stats.totalTicks + when;
-	PendingInterrupt toOccur = new PendingInterrupt(time, type, handler);
+	PendingInterrupt toOccur = allocate(time, type, handler);
 
-	Lib.debug(dbgInt,
-		  "Scheduling the " + type +
-		  " interrupt handler at time = " + time);
+	if (debugInt)
+	    System.out.println("Scheduling the " + type +
+			       " interrupt handler at time = " + time);
 
-	pending.add(toOccur);
+	add(toOccur);
     }
 
     private void tick(boolean inKernelMode) {
@@ -145,7 +171,7 @@ public final class Interrupt {
 	    stats.totalTicks += Stats.UserTick;
 	}
 
-	if (Lib.test(dbgInt))
+	if (debugInt)
 	    System.out.println("== Tick " + stats.totalTicks + " ==");
 
 	enabled = false;
@@ -153,38 +179,70 @@ public final class Interrupt {
 	enabled = true;
     }
 
+    private void tickUser(int numInstructions) {
+	Stats stats = privilege.stats;
+	long ticks = (long) Stats.UserTick * numInstructions;
+
+	// no interrupt may come due before the last of these ticks. A single
+	// instruction is always allowed: an interrupt may already be overdue if
+	// a handler for an earlier interrupt due at the same time switched
+	// threads, and it is then handled after this instruction, as it would be
+	// without blocks.
+	Lib.assertTrue(numInstructions == 1 ||
+		       (numInstructions > 1 &&
+			ticks - Stats.UserTick < ticksUntilNextInterrupt()));
+
+	stats.userTicks += ticks;
+	stats.totalTicks += ticks;
+
+	if (debugInt)
+	    System.out.println("== Tick " + stats.totalTicks + " ==");
+
+	enabled = false;
+	checkIfDue();
+	enabled = true;
+    }
+
+    private long ticksUntilNextInterrupt() {
+	if (numPending == 0)
+	    return Long.MAX_VALUE;
+
+	return nextDue - privilege.stats.totalTicks;
+    }
+
     private void checkIfDue() {
 	long time = privilege.stats.totalTicks;
 
 	Lib.assertTrue(disabled());
 
-	if (Lib.test(dbgInt))
+	if (debugInt)
 	    print();
 
-	if (pending.isEmpty())
-	    return;
-
-	if (((PendingInterrupt) pending.first()).time > time)
+	// nextDue is Long.MAX_VALUE when nothing is pending
+	if (nextDue > time)
 	    return;
 
-	Lib.debug(dbgInt, "Invoking interrupt handlers at time = " + time);
+	if (debugInt)
+	    System.out.println("Invoking interrupt handlers at time = " + time);
 	
-	while (!pending.isEmpty() &&
-	       ((PendingInterrupt) pending.first()).time <= time) {
-	    PendingInterrupt next = (PendingInterrupt) pending.first();
-	    pending.remove(next);
+	while (nextDue <= time) {
+	    PendingInterrupt next = removeFirst();
 
-	    Lib.assertTrue(next.time <= time);
+	    String type = next.type;
+	    Runnable handler = next.handler;
+	    free(next);
 
 	    if (privilege.processor != null)
 		privilege.processor.flushPipe();
 
-	    Lib.debug(dbgInt, "  " + next.type);
+	    if (debugInt)
+		System.out.println("  " + type);
 			
-	    next.handler.run();
+	    handler.run();
 	}
 
-	Lib.debug(dbgInt, "  (end of list)");
+	if (debugInt)
+	    System.out.println("  (end of list)");
     }
 
     private void print() {
@@ -192,21 +250,113 @@ public final class Interrupt {
 			   + ", interrupts " + (enabled ? "on" : "off"));
 	System.out.println("Pending interrupts:");
 
-	for (Iterator i=pending.iterator(); i.hasNext(); ) {
-	    PendingInterrupt toOccur = (PendingInterrupt) i.next();
-	    System.out.println("  " + toOccur.type +
-			       ", scheduled at " + toOccur.time);
+	PendingInterrupt[] sorted = Arrays.copyOf(pending, numPending);
+	Arrays.sort(sorted);
+
+	for (int i=0; i<sorted.length; i++) {
+	    System.out.println("  " + sorted[i].type +
+			       ", scheduled at " + sorted[i].time);
 	}
 
 	System.out.println("  (end of list)");
     }
 
+    /**
+     * Get a pending interrupt record, reusing a free one if possible.
+     */
+    private PendingInterrupt allocate(long time, String type,
+				      Runnable handler) {
+	PendingInterrupt toOccur = freeList;
+	if (toOccur != null)
+	    freeList = toOccur.nextFree;
+	else
+	    toOccur = new PendingInterrupt();
+
+	toOccur.time = time;
+	toOccur.type = type;
+	toOccur.handler = handler;
+	toOccur.id = numPendingInterruptsCreated++;
+	toOccur.nextFree = null;
+
+	return toOccur;
+    }
+
+    /**
+     * Return a pending interrupt record to the free list.
+     */
+    private void free(PendingInterrupt toOccur) {
+	toOccur.type = null;
+	toOccur.handler = null;
+	toOccur.nextFree = freeList;
+	freeList = toOccur;
+    }
+
+    /**
+     * Add an interrupt to the pending heap.
+     */
+    private void add(PendingInterrupt toOccur) {
+	if (numPending == pending.length)
+	    pending = Arrays.copyOf(pending, pending.length*2);
+
+	// sift up
+	int i = numPending++;
+	while (i > 0) {
+	    int parent = (i-1) / 2;
+	    if (!pending[parent].before(toOccur))
+		pending[i] = pending[parent];
+	    else
+		break;
+	    i = parent;
+	}
+	pending[i] = toOccur;
+
+	nextDue = pending[0].time;
+    }
+
+    /**
+     * Remove and return the earliest pending interrupt.
+     */
+    private PendingInterrupt removeFirst() {
+	Lib.assertTrue(numPending > 0);
+
+	PendingInterrupt first = pending[0];
+	PendingInterrupt last = pending[--numPending];
+	pending[numPending] = null;
+
+	if (numPending == 0) {
+	    nextDue = Long.MAX_VALUE;
+	    return first;
+	}
+
+	// sift down
+	int i = 0;
+	while (true) {
+	    int child = 2*i + 1;
+	    if (child >= numPending)
+		break;
+	    if (child+1 < numPending &&
+		pending[child+1].before(pending[child]))
+		child++;
+	    if (!pending[child].before(last))
+		break;
+	    pending[i] = pending[child];
+	    i = child;
+	}
+	pending[i] = last;
+
+	nextDue = pending[0].time;
+	return first;
+    }
+
     private class PendingInterrupt implements Comparable {
-	PendingInterrupt(long time, String type, Runnable handler) {
-	    this.time = time;
-	    this.type = type;
-	    this.handler = handler;
-	    this.id = numPendingInterruptsCreated++;
+	/**
+	 * Tests whether this interrupt should occur before another one.
+	 * Interrupts scheduled for the same time occur in the order they
+	 * were scheduled.
+	 */
+	boolean before(PendingInterrupt toOccur) {
+	    return time < toOccur.time ||
+		(time == toOccur.time && id < toOccur.id);
 	}
 
 	public int compareTo(Object o) {
@@ -230,6 +380,8 @@ public final class Interrupt {
 	Runnable handler;
 
 	private long id;
+	/** The next record on the free list. */
+	private PendingInterrupt nextFree;
     }
     
     private long numPendingInterruptsCreated = 0;
@@ -237,7 +389,20 @@ public final class Interrupt {
     private Privilege privilege;
 
     private boolean enabled;
-    private TreeSet<PendingInterrupt> pending;
+    /** <tt>true</tt> if interrupt debugging output is enabled. */
+    private boolean debugInt;
+
+    /** A binary min-heap of pending interrupts, ordered by time and id. */
+    private PendingInterrupt[] pending = new PendingInterrupt[16];
+    /** The number of pending interrupts. */
+    private int numPending = 0;
+    /**
+     * The time of the earliest pending interrupt, or <tt>Long.MAX_VALUE</tt>
+     * if none are pending.
+     */
+    private long nextDue = Long.MAX_VALUE;
+    /** Pending interrupt records available for reuse. */
+    private PendingInterrupt freeList = null;
 
     private static final char dbgInt = 'i';
 
@@ -249,5 +414,13 @@ public final class Interrupt {
 	public void tick(boolean inKernelMode) {
 	    Interrupt.this.tick(inKernelMode);
 	}
+
+	public void tickUser(int numInstructions) {
+	    Interrupt.this.tickUser(numInstructions);
+	}
+
+	public long ticksUntilNextInterrupt() {
+	    return Interrupt.this.ticksUntilNextInterrupt();
+	}
     }
 }
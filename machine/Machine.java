@@ -97,9 +97,20 @@ public final class Machine {
     public static void halt() {
 	System.out.print("Machine halting!\n\n");
 	stats.print();
+	for (Runnable report : haltReports)
+	    report.run();
 	terminate();
     }
 
+    /**
+     * Add a report to be printed by <tt>halt()</tt>, after the statistics.
+     *
+     * @param	report	prints the report when run.
+     */
+    public static void addHaltReport(Runnable report) {
+	haltReports.add(report);
+    }
+
     /**
      * Return an array containing all command line arguments.
      *
@@ -409,6 +420,8 @@ public final class Machine {
     private static String[] args = null;
 
     private static Stats stats = new Stats();
+    private static java.util.ArrayList<Runnable> haltReports =
+	new java.util.ArrayList<Runnable>();
 
     private static int numPhysPages = -1;
     private static long randomSeed = 0;
@@ -4,6 +4,8 @@ package nachos.machine;
 
 import nachos.security.*;
 
+import java.util.Arrays;
+
 /**
  * The <tt>Processor</tt> class simulates a MIPS processor that supports a
  * subset of the R3000 instruction set. Specifically, the processor lacks all
@@ -46,11 +48,40 @@ public final class Processor {
 	    registers[i] = 0;
 
 	mainMemory = new byte[pageSize * numPhysPages];
+	decodedPages = new DecodedInstruction[numPhysPages][];
+
+	compileThreshold = Config.getInteger("Processor.compileThreshold", 50);
+
+	// instruction traces need to see every fetch, so single-step for them
+	blockExecution = Config.getBoolean("Processor.blockExecution", true) &&
+	    !Lib.test(dbgProcessor) && !Lib.test(dbgDisassemble) &&
+	    !Lib.test(dbgFullDisassemble);
+
+	debugProcessor = Lib.test(dbgProcessor);
 
 	if (usingTLB) {
+	    tlbSize = Config.getInteger("Processor.tlbSize", tlbSize);
+	    tlbAssociativity =
+		Config.getInteger("Processor.tlbAssociativity", tlbSize);
+	    Lib.assertTrue(tlbSize > 0 && tlbAssociativity > 0 &&
+			   tlbSize % tlbAssociativity == 0,
+			   "bad TLB geometry");
+
+	    tlbReplacement = (TLBReplacement) Lib.constructObject(
+		Config.getString("Processor.tlbReplacement",
+				 "nachos.machine.FifoTLBReplacement"));
+
 	    translations = new TranslationEntry[tlbSize];
 	    for (int i=0; i<tlbSize; i++)
 		translations[i] = new TranslationEntry();
+
+	    int numBuckets = 1;
+	    while (numBuckets < tlbSize*2)
+		numBuckets *= 2;
+
+	    tlbBuckets = new int[numBuckets];
+	    Arrays.fill(tlbBuckets, -1);
+	    tlbChain = new int[tlbSize];
 	}
 	else {
 	    translations = null;
@@ -94,6 +125,11 @@ public final class Processor {
 	Instruction inst = new Instruction();
 	
 	while (true) {
+	    if (blockExecution) {
+		inst.runBlock();
+		continue;
+	    }
+
 	    try {
 		inst.run();
 	    }
@@ -175,6 +211,8 @@ public final class Processor {
 	Lib.assertTrue(!usingTLB);
 
 	this.translations = pageTable;
+
+	flushTranslationCache();
     }
 
     /**
@@ -188,6 +226,85 @@ public final class Processor {
 	return tlbSize;
     }
 
+    /**
+     * Return the number of entries in each set of this processor's TLB. The
+     * TLB is fully associative if this is equal to <tt>getTLBSize()</tt>.
+     *
+     * @return	the associativity of this processor's TLB.
+     */
+    public int getTLBAssociativity() {
+	Lib.assertTrue(usingTLB);
+
+	return tlbAssociativity;
+    }
+
+    /**
+     * Return the number of the first entry of the TLB set that can hold a
+     * translation for the specified virtual page. The set continues for
+     * <tt>getTLBAssociativity()</tt> entries.
+     *
+     * @param	vpn	the virtual page number.
+     * @return	the number of the first entry of the page's set.
+     */
+    public int getTLBSet(int vpn) {
+	Lib.assertTrue(usingTLB);
+
+	return (vpn % (tlbSize/tlbAssociativity)) * tlbAssociativity;
+    }
+
+    /**
+     * Choose the TLB entry that a translation for the specified virtual page
+     * should be written to. An invalid entry in the page's set is used if
+     * there is one; otherwise the configured replacement policy picks one.
+     *
+     * @param	vpn	the virtual page number.
+     * @return	the number of the TLB entry to fill.
+     */
+    public int chooseTLBEntry(int vpn) {
+	int first = getTLBSet(vpn);
+
+	for (int i=first; i<first+tlbAssociativity; i++) {
+	    if (!translations[i].valid)
+		return i;
+	}
+
+	int victim =
+	    tlbReplacement.chooseVictim(this, first, tlbAssociativity);
+	Lib.assertTrue(victim >= first && victim < first+tlbAssociativity);
+
+	return victim;
+    }
+
+    /**
+     * Return the number of memory references that have hit in the TLB since
+     * Nachos started.
+     *
+     * @return	the number of TLB hits.
+     */
+    public long getTLBHits() {
+	return privilege.stats.numTLBHits;
+    }
+
+    /**
+     * Return the number of memory references that have missed in the TLB
+     * since Nachos started.
+     *
+     * @return	the number of TLB misses.
+     */
+    public long getTLBMisses() {
+	return privilege.stats.numTLBMisses;
+    }
+
+    /**
+     * Return the number of valid TLB entries that have been replaced by a
+     * translation for a different page since Nachos started.
+     *
+     * @return	the number of TLB evictions.
+     */
+    public long getTLBEvictions() {
+	return privilege.stats.numTLBEvictions;
+    }
+
     /**
      * Returns the specified TLB entry.
      *
@@ -205,8 +322,9 @@ public final class Processor {
      * Fill the specified TLB entry.
      *
      * <p>
-     * The TLB is fully associative, so the location of an entry within the TLB
-     * does not affect anything.
+     * A valid entry must be written to the set that holds its virtual page
+     * (see <tt>getTLBSet()</tt>). If the TLB is fully associative, the
+     * location of an entry within the TLB does not affect anything.
      *
      * @param	number	the index into the TLB.
      * @param	entry	the new contents of the TLB entry.
@@ -214,8 +332,87 @@ public final class Processor {
     public void writeTLBEntry(int number, TranslationEntry entry) {
 	Lib.assertTrue(usingTLB);
 	Lib.assertTrue(number >= 0 && number < tlbSize);
+	Lib.assertTrue(!entry.valid ||
+		       number/tlbAssociativity ==
+		       getTLBSet(entry.vpn)/tlbAssociativity);
+
+	TranslationEntry old = translations[number];
+	if (old.valid) {
+	    if (entry.valid && entry.vpn != old.vpn)
+		privilege.stats.numTLBEvictions++;
+
+	    unhashTLBEntry(number);
+	}
 
 	translations[number] = new TranslationEntry(entry);
+
+	if (translations[number].valid)
+	    hashTLBEntry(number);
+
+	flushTranslationCache();
+    }
+
+    /**
+     * Add a valid TLB entry to the VPN hash table.
+     *
+     * @param	number	the index of the entry in the TLB.
+     */
+    private void hashTLBEntry(int number) {
+	int bucket = translations[number].vpn & (tlbBuckets.length-1);
+
+	tlbChain[number] = tlbBuckets[bucket];
+	tlbBuckets[bucket] = number;
+    }
+
+    /**
+     * Remove a valid TLB entry from the VPN hash table.
+     *
+     * @param	number	the index of the entry in the TLB.
+     */
+    private void unhashTLBEntry(int number) {
+	int bucket = translations[number].vpn & (tlbBuckets.length-1);
+
+	if (tlbBuckets[bucket] == number) {
+	    tlbBuckets[bucket] = tlbChain[number];
+	    return;
+	}
+
+	for (int i=tlbBuckets[bucket]; i!=-1; i=tlbChain[i]) {
+	    if (tlbChain[i] == number) {
+		tlbChain[i] = tlbChain[number];
+		return;
+	    }
+	}
+
+	Lib.assertNotReached();
+    }
+
+    /**
+     * Find the TLB entry for a virtual page. If more than one valid entry
+     * maps the page, the one with the lowest index wins, just as it would in
+     * a linear search.
+     *
+     * @param	vpn	the virtual page number to look up.
+     * @return	the matching TLB entry, or <tt>null</tt> if there is none.
+     */
+    private TranslationEntry lookupTLB(int vpn) {
+	int match = -1;
+
+	for (int i=tlbBuckets[vpn & (tlbBuckets.length-1)]; i!=-1;
+	     i=tlbChain[i]) {
+	    if (translations[i].vpn == vpn && (match == -1 || i < match))
+		match = i;
+	}
+
+	return (match == -1) ? null : translations[match];
+    }
+
+    /**
+     * Forget the translations remembered by <tt>translate()</tt>.
+     */
+    private void flushTranslationCache() {
+	for (int i=0; i<numAccessTypes; i++)
+	    lastTranslation[i] = null;
     }
 
     /**
@@ -238,6 +435,22 @@ public final class Processor {
     	return mainMemory;
     }
 
+    /**
+     * Discard any decoded instructions cached for the specified physical page.
+     * The processor keeps the decoded form of every instruction it executes,
+     * so the kernel must call this method whenever it modifies a physical
+     * page through <tt>getMemory()</tt>, or the processor may go on executing
+     * the old contents of the page. Stores made by user instructions flush
+     * the cache automatically.
+     *
+     * @param	ppn	the physical page whose contents have changed.
+     */
+    public void flushInstructionCache(int ppn) {
+	Lib.assertTrue(ppn >= 0 && ppn < numPhysPages);
+
+	decodedPages[ppn] = null;
+    }
+
     /**
      * Concatenate a page number and an offset into an address.
      *
@@ -279,6 +492,83 @@ public final class Processor {
 	delayedLoad(0, 0, 0);
     }
 
+    /**
+     * Return the decoded instruction cache for the specified physical page,
+     * allocating it if necessary.
+     *
+     * @param	ppn	the physical page number.
+     * @return	the decoded instructions of the page, indexed by word.
+     */
+    private DecodedInstruction[] getDecodedPage(int ppn) {
+	DecodedInstruction[] page = decodedPages[ppn];
+	if (page == null) {
+	    page = new DecodedInstruction[pageSize / 4];
+	    decodedPages[ppn] = page;
+	}
+
+	return page;
+    }
+
+    /**
+     * Return the decoded form of the specified word of a physical page,
+     * decoding it if it is not already cached.
+     *
+     * @param	page	the page's decoded instruction cache.
+     * @param	ppn	the physical page number.
+     * @param	index	the index of the word within the page.
+     * @return	the decoded instruction.
+     */
+    private DecodedInstruction getDecoded(DecodedInstruction[] page, int ppn,
+					  int index) {
+	DecodedInstruction decoded = page[index];
+	if (decoded == null) {
+	    decoded = new DecodedInstruction(
+		Lib.bytesToInt(mainMemory, ppn*pageSize + index*4));
+	    page[index] = decoded;
+	}
+
+	return decoded;
+    }
+
+    /**
+     * Return the length of the basic block starting at the specified word of
+     * a physical page. A basic block runs up to and including the first
+     * instruction that can transfer control (a branch or jump together with
+     * its delay slot, a syscall, or an invalid instruction), and never
+     * crosses a page boundary. The result is remembered in the first
+     * instruction of the block.
+     *
+     * @param	page	the page's decoded instruction cache.
+     * @param	ppn	the physical page number.
+     * @param	index	the index of the first word of the block.
+     * @return	the number of instructions in the block.
+     */
+    private int getBlockLength(DecodedInstruction[] page, int ppn,
+			       int index) {
+	DecodedInstruction first = getDecoded(page, ppn, index);
+	if (first.blockLength != 0)
+	    return first.blockLength;
+
+	int end = index;
+	while (end < page.length) {
+	    DecodedInstruction decoded = getDecoded(page, ppn, end++);
+
+	    if (Lib.test(Mips.BRANCH, decoded.flags)) {
+		// the delay slot belongs to the block too
+		if (end < page.length)
+		    getDecoded(page, ppn, end++);
+		break;
+	    }
+	    if (decoded.operation == Mips.SYSCALL ||
+		decoded.operation == Mips.UNIMPL ||
+		decoded.operation == Mips.INVALID)
+		break;
+	}
+
+	first.blockLength = end - index;
+	return first.blockLength;
+    }
+
     /**
      * Translate a virtual address into a physical address, using either a
      * page table or a TLB. Check for alignment, make sure the virtual page is
@@ -286,15 +576,23 @@ public final class Processor {
      * resulting physical page is valid, and then return the resulting physical
      * address.
      *
+     * <p>
+     * With a TLB, the last entry used by each type of access is remembered,
+     * so that consecutive fetches, loads, or stores to the same page do not
+     * need to search the TLB at all.
+     *
      * @param	vaddr	the virtual address to translate.
      * @param	size	the size of the memory reference (must be 1, 2, or 4).
-     * @param	writing	<tt>true</tt> if the memory reference is a write.
+     * @param	access	the type of memory reference (<tt>accessFetch</tt>,
+     *			<tt>accessLoad</tt>, or <tt>accessStore</tt>).
      * @return		the physical address.
      * @exception	MipsException	if a translation error occurred.
      */
-    private int translate(int vaddr, int size, boolean writing)
+    private int translate(int vaddr, int size, int access)
 	throws MipsException {
-	if (Lib.test(dbgProcessor))
+	boolean writing = (access == accessStore);
+
+	if (debugProcessor)
 	    System.out.println("\ttranslate vaddr=0x" + Lib.toHexString(vaddr)
 			       + (writing ? ", write" : ", read..."));
 
@@ -322,21 +620,26 @@ public final class Processor {
 
 	    entry = translations[vpn];
 	}
-	// else, look through all TLB entries for matching vpn
+	// else, try the last entry used for this kind of access
+	else if (lastTranslation[access] != null &&
+		 lastTranslation[access].vpn == vpn) {
+	    entry = lastTranslation[access];
+	}
+	// else, look up the TLB entry for the vpn
 	else {
-	    for (int i=0; i<tlbSize; i++) {
-		if (translations[i].valid && translations[i].vpn == vpn) {
-		    entry = translations[i];
-		    break;
-		}
-	    }
+	    entry = lookupTLB(vpn);
 	    if (entry == null) {
 		privilege.stats.numTLBMisses++;
 		Lib.debug(dbgProcessor, "\t\tTLB miss");
 		throw new MipsException(exceptionTLBMiss, vaddr);
 	    }
+
+	    lastTranslation[access] = entry;
 	}
 
+	if (usingTLB)
+	    privilege.stats.numTLBHits++;
+
 	// check if trying to write a read-only page
 	if (entry.readOnly && writing) {
 	    Lib.debug(dbgProcessor, "\t\tread-only exception");
@@ -357,7 +660,7 @@ public final class Processor {
 
 	int paddr = (ppn*pageSize) + offset;
 
-	if (Lib.test(dbgProcessor))
+	if (debugProcessor)
 	    System.out.println("\t\tpaddr=0x" + Lib.toHexString(paddr));	
 	return paddr;
     }
@@ -372,16 +675,16 @@ public final class Processor {
      * @exception	MipsException	if a translation error occurred.
      */
     private int readMem(int vaddr, int size) throws MipsException {
-	if (Lib.test(dbgProcessor))
+	if (debugProcessor)
 	    System.out.println("\treadMem vaddr=0x" + Lib.toHexString(vaddr)
 			       + ", size=" + size);
 
 	Lib.assertTrue(size==1 || size==2 || size==4);
 	
-	int value = Lib.bytesToInt(mainMemory, translate(vaddr, size, false),
-				   size);
+	int value = Lib.bytesToInt(mainMemory,
+				   translate(vaddr, size, accessLoad), size);
 
-	if (Lib.test(dbgProcessor))
+	if (debugProcessor)
 	    System.out.println("\t\tvalue read=0x" +
 			       Lib.toHexString(value, size*2));
 	
@@ -399,15 +702,21 @@ public final class Processor {
      */
     private void writeMem(int vaddr, int size, int value)
 	throws MipsException {
-	if (Lib.test(dbgProcessor))
+	if (debugProcessor)
 	    System.out.println("\twriteMem vaddr=0x" + Lib.toHexString(vaddr)
 			       + ", size=" + size + ", value=0x"
 			       + Lib.toHexString(value, size*2));
 
 	Lib.assertTrue(size==1 || size==2 || size==4);
+
+	int paddr = translate(vaddr, size, accessStore);
+
+	// self-modifying code: forget anything decoded from this page
+	int ppn = paddr / pageSize;
+	if (decodedPages[ppn] != null)
+	    decodedPages[ppn] = null;
 	
-	Lib.bytesFromInt(mainMemory, translate(vaddr, size, true), size,
-			 value);
+	Lib.bytesFromInt(mainMemory, paddr, size, value);
     }
 
     /**
@@ -541,11 +850,28 @@ public final class Processor {
     private boolean usingTLB;
     /** Number of TLB entries. */
     private int tlbSize = 4;
+    /** Number of TLB entries in each set. */
+    private int tlbAssociativity;
+    /** Chooses which entry of a full TLB set to replace. */
+    private TLBReplacement tlbReplacement;
     /**
      * Either an associative or direct-mapped set of translation entries,
      * depending on whether there is a TLB.
      */
     private TranslationEntry[] translations;
+    /**
+     * Heads of the TLB hash chains, indexed by the low bits of the vpn. Only
+     * valid TLB entries are hashed.
+     */
+    private int[] tlbBuckets;
+    /** The next TLB entry in the same hash chain, or -1. */
+    private int[] tlbChain;
+    /**
+     * The TLB entry used by the last translation of each type of access, or
+     * <tt>null</tt>. Cleared whenever the TLB or page table changes.
+     */
+    private TranslationEntry[] lastTranslation =
+	new TranslationEntry[numAccessTypes];
 
     /** Size of a page, in bytes. */
     public static final int pageSize = 0x400;
@@ -555,10 +881,35 @@ public final class Processor {
     private int numPhysPages;
     /** Main memory for user programs. */
     private byte[] mainMemory;
+    /**
+     * <tt>true</tt> if whole basic blocks are executed between interrupt
+     * checks, rather than a single instruction at a time.
+     */
+    private boolean blockExecution;
+    /**
+     * The number of times a basic block must be executed before it is
+     * compiled, or 0 to never compile.
+     */
+    private int compileThreshold;
+    /**
+     * Decoded instructions, indexed by physical page number and then by word
+     * within the page. A page's array is allocated the first time an
+     * instruction is fetched from it, and discarded whenever the page is
+     * written.
+     */
+    private DecodedInstruction[][] decodedPages;
 
     /** The kernel exception handler, called on every user exception. */
     private Runnable exceptionHandler = null;
 
+    /** <tt>true</tt> if processor debugging output is enabled. */
+    private boolean debugProcessor;
+
+    private static final int accessFetch = 0;
+    private static final int accessLoad = 1;
+    private static final int accessStore = 2;
+    private static final int numAccessTypes = 3;
+
     private static final char dbgProcessor = 'p';
     private static final char dbgDisassemble = 'm';
     private static final char dbgFullDisassemble = 'M';
@@ -616,6 +967,92 @@ public final class Processor {
 	    writeBack();
 	}	
 
+	/**
+	 * Execute the basic block starting at the current PC, and then advance
+	 * the simulated time by the number of instructions executed. The block
+	 * is cut short so that it ends no later than the tick at which the next
+	 * pending interrupt becomes due, so interrupts and exceptions are
+	 * delivered at exactly the same time as by single-stepping with
+	 * <tt>run()</tt>.
+	 */
+	public void runBlock() {
+	    int executed = 0;
+	    boolean started = false;
+
+	    try {
+		int startPC = registers[regPC];
+		int paddr = translate(startPC, 4, accessFetch);
+		int ppn = paddr / pageSize;
+		started = true;
+		int index = (paddr % pageSize) / 4;
+
+		DecodedInstruction[] page = getDecodedPage(ppn);
+		int length = getBlockLength(page, ppn, index);
+
+		long maxLength =
+		    privilege.interrupt.ticksUntilNextInterrupt() /
+		    Stats.UserTick;
+		if (length > maxLength)
+		    length = (int) Math.max(maxLength, 1);
+
+		// hot blocks graduate to compiled form
+		DecodedInstruction first = page[index];
+		if (first.compiled == null && compileThreshold > 0 &&
+		    ++first.executions >= compileThreshold)
+		    first.compiled = compileBlock(page, index, first.blockLength);
+
+		CompiledInstruction[] compiled = first.compiled;
+
+		while (true) {
+		    if (compiled != null) {
+			compiled[executed].run(this);
+		    }
+		    else {
+			decoded = page[index+executed];
+			decode();
+			execute();
+			writeBack();
+		    }
+		    executed++;
+
+		    // stop at the end of the block, after a taken branch that
+		    // began the block in its delay slot, or after a store into
+		    // this page
+		    if (executed == length ||
+			registers[regPC] != startPC + executed*4 ||
+			decodedPages[ppn] != page)
+			break;
+		}
+	    }
+	    catch (MipsException e) {
+		// the faulting instruction was fetched too
+		if (started)
+		    countBlockFetches(executed+1);
+		if (executed > 0)
+		    privilege.interrupt.tickUser(executed);
+		
+		e.handle();
+
+		privilege.interrupt.tick(false);
+		return;
+	    }
+
+	    countBlockFetches(executed);
+	    privilege.interrupt.tickUser(executed);
+	}
+
+	/**
+	 * Count the instruction fetches of a block as TLB hits. Only the first
+	 * fetch of a block is actually translated, and it has already been
+	 * counted.
+	 *
+	 * @param	numFetches	the number of instructions fetched.
+	 */
+	private void countBlockFetches(int numFetches) {
+	    if (usingTLB && numFetches > 1)
+		privilege.stats.numTLBHits += numFetches-1;
+	}
+
 	private boolean test(int flag) {
 	    return Lib.test(flag, flags);
 	}
@@ -626,63 +1063,43 @@ public final class Processor {
 		System.out.print("PC=0x" + Lib.toHexString(registers[regPC])
 				 + "\t");
 
-	    value = readMem(registers[regPC], 4);
+	    int paddr = translate(registers[regPC], 4, accessFetch);
+	    int ppn = paddr / pageSize;
+
+	    decoded = getDecoded(getDecodedPage(ppn), ppn,
+				 (paddr % pageSize) / 4);
+
+	    if (debugProcessor)
+		System.out.println("\t\tinstruction=0x" +
+				   Lib.toHexString(decoded.value));
 	}
 	
 	private void decode() {
-	    op = Lib.extract(value, 26, 6);
-	    rs = Lib.extract(value, 21, 5);
-	    rt = Lib.extract(value, 16, 5);
-	    rd = Lib.extract(value, 11, 5);
-	    sh = Lib.extract(value, 6, 5);
-	    func = Lib.extract(value, 0, 6);
-	    target = Lib.extract(value, 0, 26);
-	    imm = Lib.extend(value, 0, 16);
-
-	    Mips info;
-	    switch (op) {
-	    case 0:
-		info = Mips.specialtable[func];
-		break;
-	    case 1:
-		info = Mips.regimmtable[rt];
-		break;
-	    default:
-		info = Mips.optable[op];
-		break;
-	    }
-
-	    operation = info.operation;
-	    name = info.name;
-	    format = info.format;
-	    flags = info.flags;
+	    // the register-independent fields come straight from the cache
+	    value = decoded.value;
+	    op = decoded.op;
+	    rs = decoded.rs;
+	    rt = decoded.rt;
+	    rd = decoded.rd;
+	    sh = decoded.sh;
+	    func = decoded.func;
+	    target = decoded.target;
+	    imm = decoded.imm;
+
+	    operation = decoded.operation;
+	    name = decoded.name;
+	    format = decoded.format;
+	    flags = decoded.flags;
+
+	    size = decoded.size;
+	    dstReg = decoded.dstReg;
 
 	    mask = 0xFFFFFFFF;	
 	    branch = true;
-	
-	    // get memory access size
-	    if (test(Mips.SIZEB))
-		size = 1;
-	    else if (test(Mips.SIZEH))
-		size = 2;
-	    else if (test(Mips.SIZEW))
-		size = 4;
-	    else
-		size = 0;
 
 	    // get nextPC
 	    nextPC = registers[regNextPC]+4;
 
-	    // get dstReg
-	    if (test(Mips.DSTRA))
-		dstReg = regRA;
-	    else if (format == Mips.IFMT)
-		dstReg = rt;
-	    else if (format == Mips.RFMT)
-		dstReg = rd;
-	    else
-		dstReg = -1;
-
 	    // get jtarget
 	    if (format == Mips.RFMT)
 		jtarget = registers[rs];
@@ -693,11 +1110,6 @@ public final class Processor {
 	    else
 		jtarget = -1;
 
-	    // get imm
-	    if (test(Mips.UNSIGNED)) {
-		imm &= 0xFFFF;
-	    }
-
 	    // get addr
 	    addr = registers[rs] + imm;
 
@@ -1052,6 +1464,7 @@ public final class Processor {
 	}
     
 	// state used to execute a single instruction
+	DecodedInstruction decoded;
 	int value, op, rs, rt, rd, sh, func, target, imm;
 	int operation, format, flags;
 	String name;
@@ -1063,6 +1476,541 @@ public final class Processor {
 	boolean branch;
     }
 
+    /**
+     * The parts of a decoded instruction that depend only on the instruction
+     * word, and not on the contents of any register. These are computed once
+     * per instruction word and cached in <tt>decodedPages</tt>.
+     */
+    private static class DecodedInstruction {
+	DecodedInstruction(int value) {
+	    this.value = value;
+	    
+	    op = Lib.extract(value, 26, 6);
+	    rs = Lib.extract(value, 21, 5);
+	    rt = Lib.extract(value, 16, 5);
+	    rd = Lib.extract(value, 11, 5);
+	    sh = Lib.extract(value, 6, 5);
+	    func = Lib.extract(value, 0, 6);
+	    target = Lib.extract(value, 0, 26);
+	    imm = Lib.extend(value, 0, 16);
+
+	    Mips info;
+	    switch (op) {
+	    case 0:
+		info = Mips.specialtable[func];
+		break;
+	    case 1:
+		info = Mips.regimmtable[rt];
+		break;
+	    default:
+		info = Mips.optable[op];
+		break;
+	    }
+
+	    operation = info.operation;
+	    name = info.name;
+	    format = info.format;
+	    flags = info.flags;
+
+	    // get memory access size
+	    if (Lib.test(Mips.SIZEB, flags))
+		size = 1;
+	    else if (Lib.test(Mips.SIZEH, flags))
+		size = 2;
+	    else if (Lib.test(Mips.SIZEW, flags))
+		size = 4;
+	    else
+		size = 0;
+
+	    // get dstReg
+	    if (Lib.test(Mips.DSTRA, flags))
+		dstReg = regRA;
+	    else if (format == Mips.IFMT)
+		dstReg = rt;
+	    else if (format == Mips.RFMT)
+		dstReg = rd;
+	    else
+		dstReg = -1;
+
+	    // get imm
+	    if (Lib.test(Mips.UNSIGNED, flags)) {
+		imm &= 0xFFFF;
+	    }
+	}
+
+	int value, op, rs, rt, rd, sh, func, target, imm;
+	int operation, format, flags;
+	String name;
+	int size, dstReg;
+
+	/**
+	 * The length of the basic block starting at this instruction, or 0 if
+	 * it has not been computed yet.
+	 */
+	int blockLength = 0;
+	/** The number of times the block starting here has been executed. */
+	int executions = 0;
+	/**
+	 * The compiled form of the block starting here, or <tt>null</tt> if
+	 * the block has not become hot yet.
+	 */
+	CompiledInstruction[] compiled = null;
+    }
+
+    /**
+     * Compile the basic block starting at the specified word of a page.
+     *
+     * @param	page	the page's decoded instruction cache.
+     * @param	index	the index of the first word of the block.
+     * @param	length	the number of instructions in the block.
+     * @return	the compiled instructions of the block.
+     */
+    private CompiledInstruction[] compileBlock(DecodedInstruction[] page,
+					       int index, int length) {
+	CompiledInstruction[] block = new CompiledInstruction[length];
+
+	for (int i=0; i<length; i++)
+	    block[i] = compile(page[index+i]);
+
+	return block;
+    }
+
+    /**
+     * Compile a single decoded instruction. The common integer, branch, and
+     * memory instructions are bound to a specialized implementation that
+     * reads its operands straight out of the register file. Everything else
+     * is executed by the interpreter.
+     *
+     * @param	decoded	the instruction to compile.
+     * @return	the compiled instruction.
+     */
+    private CompiledInstruction compile(DecodedInstruction decoded) {
+	int flags = decoded.flags;
+
+	switch (decoded.operation) {
+	case Mips.ADD:
+	case Mips.SUB:
+	    // overflow-checking forms can trap, so leave them to the interpreter
+	    if (Lib.test(Mips.OVERFLOW, flags))
+		break;
+	    else if (Lib.test(Mips.SRC2IMM, flags))
+		return new CompiledImmediate(decoded);
+	    else
+		return new CompiledRegister(decoded);
+
+	case Mips.AND:
+	case Mips.OR:
+	case Mips.XOR:
+	case Mips.NOR:
+	case Mips.SLT:
+	case Mips.LUI:
+	    if (Lib.test(Mips.SRC2IMM, flags))
+		return new CompiledImmediate(decoded);
+	    else
+		return new CompiledRegister(decoded);
+
+	case Mips.SLL:
+	case Mips.SRA:
+	case Mips.SRL:
+	    if (Lib.test(Mips.SRC1SH, flags))
+		return new CompiledShift(decoded);
+	    else
+		return new CompiledRegister(decoded);
+
+	case Mips.MULT:
+	case Mips.MFLO:
+	case Mips.MFHI:
+	case Mips.MTLO:
+	case Mips.MTHI:
+	    return new CompiledHiLo(decoded);
+
+	case Mips.BEQ:
+	case Mips.BNE:
+	case Mips.BLEZ:
+	case Mips.BGTZ:
+	case Mips.BLTZ:
+	case Mips.BGEZ:
+	    return new CompiledBranch(decoded);
+
+	case Mips.JUMP:
+	    return new CompiledJump(decoded);
+
+	case Mips.LOAD:
+	    return new CompiledLoad(decoded);
+
+	case Mips.STORE:
+	    return new CompiledStore(decoded);
+	}
+
+	return new CompiledInstruction(decoded);
+    }
+
+    /**
+     * Complete the in progress delayed load, write the result of an
+     * instruction, and advance the PC to the next sequential instruction.
+     * This is the common tail of every compiled non-branching instruction.
+     *
+     * @param	dstReg	the destination register, or 0 for none.
+     * @param	value	the value to write to <tt>dstReg</tt>.
+     */
+    private void retire(int dstReg, int value) {
+	finishLoad();
+
+	if (dstReg != 0)
+	    registers[dstReg] = value;
+
+	advancePC(registers[regNextPC]+4);
+    }
+
+    /**
+     * A compiled instruction. Compiled instructions have exactly the same
+     * effect as running the instruction through the interpreter, including
+     * delayed loads, branch delay slots, and exceptions. This base class
+     * simply runs the interpreter; the subclasses specialize the common
+     * instructions.
+     */
+    private class CompiledInstruction {
+	CompiledInstruction(DecodedInstruction decoded) {
+	    this.decoded = decoded;
+
+	    rs = decoded.rs;
+	    rt = decoded.rt;
+	    imm = decoded.imm;
+	    dstReg = decoded.dstReg;
+	    operation = decoded.operation;
+	    unsigned = Lib.test(Mips.UNSIGNED, decoded.flags);
+	}
+
+	void run(Instruction inst) throws MipsException {
+	    inst.decoded = decoded;
+	    inst.decode();
+	    inst.execute();
+	    inst.writeBack();
+	}
+
+	final DecodedInstruction decoded;
+	final int rs, rt, imm, dstReg, operation;
+	final boolean unsigned;
+    }
+
+    /** An arithmetic or logical instruction with an immediate operand. */
+    private class CompiledImmediate extends CompiledInstruction {
+	CompiledImmediate(DecodedInstruction decoded) {
+	    super(decoded);
+	}
+
+	void run(Instruction inst) {
+	    int src1 = registers[rs];
+	    int dst;
+
+	    switch (operation) {
+	    case Mips.ADD:
+		dst = src1 + imm;
+		break;
+	    case Mips.SLT:
+		if (unsigned)
+		    dst = ((src1&0xFFFFFFFFL) < (imm&0xFFFFFFFFL)) ? 1 : 0;
+		else
+		    dst = (src1 < imm) ? 1 : 0;
+		break;
+	    case Mips.AND:
+		dst = src1 & imm;
+		break;
+	    case Mips.OR:
+		dst = src1 | imm;
+		break;
+	    case Mips.XOR:
+		dst = src1 ^ imm;
+		break;
+	    case Mips.LUI:
+		dst = imm << 16;
+		break;
+	    default:
+		Lib.assertNotReached();
+		return;
+	    }
+
+	    retire(dstReg, dst);
+	}
+    }
+
+    /** An arithmetic, logical, or shift instruction on two registers. */
+    private class CompiledRegister extends CompiledInstruction {
+	CompiledRegister(DecodedInstruction decoded) {
+	    super(decoded);
+	}
+
+	void run(Instruction inst) {
+	    int src1 = registers[rs];
+	    int src2 = registers[rt];
+	    int dst;
+
+	    switch (operation) {
+	    case Mips.ADD:
+		dst = src1 + src2;
+		break;
+	    case Mips.SUB:
+		dst = src1 - src2;
+		break;
+	    case Mips.AND:
+		dst = src1 & src2;
+		break;
+	    case Mips.OR:
+		dst = src1 | src2;
+		break;
+	    case Mips.NOR:
+		dst = ~(src1 | src2);
+		break;
+	    case Mips.XOR:
+		dst = src1 ^ src2;
+		break;
+	    case Mips.SLT:
+		if (unsigned)
+		    dst = ((src1&0xFFFFFFFFL) < (src2&0xFFFFFFFFL)) ? 1 : 0;
+		else
+		    dst = (src1 < src2) ? 1 : 0;
+		break;
+	    case Mips.SLL:
+		dst = src2 << (src1&0x1F);
+		break;
+	    case Mips.SRA:
+		dst = src2 >> (src1&0x1F);
+		break;
+	    case Mips.SRL:
+		// the interpreter shifts the sign-extended 64-bit value
+		dst = (int) (((long) src2) >>> (src1&0x1F));
+		break;
+	    default:
+		Lib.assertNotReached();
+		return;
+	    }
+
+	    retire(dstReg, dst);
+	}
+    }
+
+    /** A shift by a constant amount. */
+    private class CompiledShift extends CompiledInstruction {
+	CompiledShift(DecodedInstruction decoded) {
+	    super(decoded);
+
+	    sh = decoded.sh;
+	}
+
+	void run(Instruction inst) {
+	    int src2 = registers[rt];
+	    int dst;
+
+	    switch (operation) {
+	    case Mips.SLL:
+		dst = src2 << sh;
+		break;
+	    case Mips.SRA:
+		dst = src2 >> sh;
+		break;
+	    case Mips.SRL:
+		// the interpreter shifts the sign-extended 64-bit value
+		dst = (int) (((long) src2) >>> sh);
+		break;
+	    default:
+		Lib.assertNotReached();
+		return;
+	    }
+
+	    retire(dstReg, dst);
+	}
+
+	final int sh;
+    }
+
+    /** A multiply, or a move to or from the hi or lo register. */
+    private class CompiledHiLo extends CompiledInstruction {
+	CompiledHiLo(DecodedInstruction decoded) {
+	    super(decoded);
+	}
+
+	void run(Instruction inst) {
+	    switch (operation) {
+	    case Mips.MULT:
+		long src1 = registers[rs];
+		long src2 = registers[rt];
+		if (unsigned) {
+		    src1 &= 0xFFFFFFFFL;
+		    src2 &= 0xFFFFFFFFL;
+		}
+
+		long product = src1 * src2;
+		registers[regLo] = (int) product;
+		registers[regHi] = (int) (product >> 32);
+		retire(0, 0);
+		break;
+	    case Mips.MFLO:
+		retire(dstReg, registers[regLo]);
+		break;
+	    case Mips.MFHI:
+		retire(dstReg, registers[regHi]);
+		break;
+	    case Mips.MTLO:
+		registers[regLo] = registers[rs];
+		retire(0, 0);
+		break;
+	    case Mips.MTHI:
+		registers[regHi] = registers[rs];
+		retire(0, 0);
+		break;
+	    default:
+		Lib.assertNotReached();
+	    }
+	}
+    }
+
+    /** A conditional branch, possibly linking. */
+    private class CompiledBranch extends CompiledInstruction {
+	CompiledBranch(DecodedInstruction decoded) {
+	    super(decoded);
+
+	    link = Lib.test(Mips.LINK, decoded.flags);
+	}
+
+	void run(Instruction inst) {
+	    int src1 = registers[rs];
+	    int src2 = registers[rt];
+	    int nextPC = registers[regNextPC]+4;
+	    int jtarget = registers[regNextPC] + (imm<<2);
+	    boolean branch;
+
+	    switch (operation) {
+	    case Mips.BEQ:
+		branch = (src1 == src2);
+		break;
+	    case Mips.BNE:
+		branch = (src1 != src2);
+		break;
+	    case Mips.BGEZ:
+		branch = (src1 >= 0);
+		break;		
+	    case Mips.BGTZ:
+		branch = (src1 > 0);
+		break;		
+	    case Mips.BLEZ:
+		branch = (src1 <= 0);
+		break;		
+	    case Mips.BLTZ:
+		branch = (src1 < 0);
+		break;
+	    default:
+		Lib.assertNotReached();
+		return;
+	    }
+
+	    finishLoad();
+
+	    if (link)
+		registers[dstReg] = nextPC;
+
+	    advancePC(branch ? jtarget : nextPC);
+	}
+
+	final boolean link;
+    }
+
+    /** An unconditional jump, possibly linking. */
+    private class CompiledJump extends CompiledInstruction {
+	CompiledJump(DecodedInstruction decoded) {
+	    super(decoded);
+
+	    link = Lib.test(Mips.LINK, decoded.flags);
+	    register = (decoded.format == Mips.RFMT);
+	    target = decoded.target;
+	}
+
+	void run(Instruction inst) {
+	    int nextPC = registers[regNextPC]+4;
+	    int jtarget;
+	    if (register)
+		jtarget = registers[rs];
+	    else
+		jtarget = (registers[regNextPC]&0xF0000000) | (target<<2);
+
+	    finishLoad();
+
+	    if (link && dstReg != 0)
+		registers[dstReg] = nextPC;
+
+	    advancePC(jtarget);
+	}
+
+	final boolean link, register;
+	final int target;
+    }
+
+    /** A byte, halfword, or word load. */
+    private class CompiledLoad extends CompiledInstruction {
+	CompiledLoad(DecodedInstruction decoded) {
+	    super(decoded);
+
+	    size = decoded.size;
+	}
+
+	void run(Instruction inst) throws MipsException {
+	    int paddr = translate(registers[rs] + imm, size, accessLoad);
+	    int value;
+
+	    // the interpreter sign-extends every load, including lbu and lhu
+	    switch (size) {
+	    case 1:
+		value = mainMemory[paddr];
+		break;
+	    case 2:
+		value = Lib.bytesToShort(mainMemory, paddr);
+		break;
+	    default:
+		value = Lib.bytesToInt(mainMemory, paddr);
+		break;
+	    }
+
+	    delayedLoad(dstReg, value, 0xFFFFFFFF);
+	    advancePC(registers[regNextPC]+4);
+	}
+
+	final int size;
+    }
+
+    /** A byte, halfword, or word store. */
+    private class CompiledStore extends CompiledInstruction {
+	CompiledStore(DecodedInstruction decoded) {
+	    super(decoded);
+
+	    size = decoded.size;
+	}
+
+	void run(Instruction inst) throws MipsException {
+	    int value = registers[rt];
+	    int paddr = translate(registers[rs] + imm, size, accessStore);
+
+	    // self-modifying code: forget anything decoded from this page
+	    int ppn = paddr / pageSize;
+	    if (decodedPages[ppn] != null)
+		decodedPages[ppn] = null;
+
+	    switch (size) {
+	    case 1:
+		mainMemory[paddr] = (byte) value;
+		break;
+	    case 2:
+		Lib.bytesFromShort(mainMemory, paddr, (short) value);
+		break;
+	    default:
+		Lib.bytesFromInt(mainMemory, paddr, value);
+		break;
+	    }
+
+	    retire(0, 0);
+	}
+
+	final int size;
+    }
+
     private static class Mips {
 	Mips() {
 	}
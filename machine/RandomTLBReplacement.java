@@ -0,0 +1,19 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+/**
+ * A TLB replacement policy that replaces a random entry of the set.
+ */
+public class RandomTLBReplacement implements TLBReplacement {
+    /**
+     * Allocate a new random replacement policy.
+     */
+    public RandomTLBReplacement() {
+    }
+
+    public int chooseVictim(Processor processor, int firstEntry,
+			    int numEntries) {
+	return firstEntry + Lib.random(numEntries);
+    }
+}
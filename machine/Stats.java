@@ -27,10 +27,30 @@ public final class Stats {
 			   + ", writes " + numConsoleWrites);
 	System.out.println("Paging: page faults " + numPageFaults
 			   + ", TLB misses " + numTLBMisses);
+	if (numTLBHits + numTLBMisses > 0)
+	    System.out.println("TLB: hits " + numTLBHits
+			       + " (" + hitRate(numTLBHits, numTLBMisses) + ")"
+			       + ", misses " + numTLBMisses
+			       + ", evictions " + numTLBEvictions);
 	System.out.println("Network I/O: received " + numPacketsReceived
 			   + ", sent " + numPacketsSent);
     }
 
+    /**
+     * Format a hit rate as a percentage.
+     *
+     * @param	hits	the number of hits.
+     * @param	misses	the number of misses.
+     * @return	the fraction of references that hit, as a percentage.
+     */
+    public static String hitRate(long hits, long misses) {
+	if (hits + misses == 0)
+	    return "n/a";
+
+	long tenths = (hits*1000 + (hits+misses)/2) / (hits+misses);
+	return (tenths/10) + "." + (tenths%10) + "%";
+    }
+
     /**
      * The total amount of simulated time that has passed since Nachos
      * started.
@@ -57,6 +77,13 @@ public final class Stats {
     public int numPageFaults = 0;
     /** The total number of TLB misses that have occurred. */
     public int numTLBMisses = 0;
+    /** The total number of memory references that have hit in the TLB. */
+    public long numTLBHits = 0;
+    /**
+     * The total number of valid TLB entries that have been replaced by a
+     * translation for a different page.
+     */
+    public int numTLBEvictions = 0;
     /** The total number of packets Nachos has sent to the network. */
     public int numPacketsSent = 0;
     /** The total number of packets Nachos has received from the network. */
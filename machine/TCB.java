@@ -6,6 +6,8 @@ import nachos.security.*;
 import nachos.threads.KThread;
 
 import java.util.Vector;
+import java.util.concurrent.locks.LockSupport;
+import java.lang.reflect.Method;
 import java.security.PrivilegedAction;
 
 /**
@@ -14,6 +16,16 @@ import java.security.PrivilegedAction;
  * object.
  *
  * <p>
+ * The <tt>TCB.backend</tt> configuration key selects how control is handed
+ * from one JVM thread to the next. <tt>monitor</tt> (the default) waits and
+ * notifies on a monitor bound to each TCB. <tt>park</tt> uses
+ * <tt>LockSupport.park()</tt> and <tt>unpark()</tt>, optionally spinning for
+ * <tt>TCB.spinCount</tt> iterations first. <tt>virtual</tt> is like
+ * <tt>park</tt>, but runs each TCB on a virtual thread if the JVM supports
+ * them. <tt>TCB.maxThreads</tt> and <tt>TCB.stackSize</tt> bound the number of
+ * TCBs and the stack size of their platform threads.
+ *
+ * <p>
  * Do not use any methods in <tt>java.lang.Thread</tt>, as they are not
  * compatible with the TCB API. Most <tt>Thread</tt> methods will either crash
  * Nachos or have no useful effect.
@@ -40,6 +52,72 @@ public final class TCB {
     public static void givePrivilege(Privilege privilege) {
 	TCB.privilege = privilege;
 	privilege.tcb = new TCBPrivilege();
+
+	maxThreads = Config.getInteger("TCB.maxThreads", maxThreads);
+	stackSize = Config.getInteger("TCB.stackSize", 0);
+	spinCount = Config.getInteger("TCB.spinCount", 0);
+
+	String backend = Config.getString("TCB.backend", "monitor");
+	if (backend.equals("monitor")) {
+	    parkHandoff = false;
+	}
+	else if (backend.equals("park")) {
+	    parkHandoff = true;
+	}
+	else if (backend.equals("virtual")) {
+	    parkHandoff = true;
+	    findVirtualThreadBuilder();
+	}
+	else {
+	    Lib.assertNotReached("unknown TCB backend: " + backend);
+	}
+    }
+
+    /**
+     * Look up <tt>Thread.ofVirtual()</tt> and
+     * <tt>Thread.Builder.unstarted()</tt>, which only exist on JVMs with
+     * virtual threads. If they are missing, TCBs fall back to platform
+     * threads.
+     */
+    private static void findVirtualThreadBuilder() {
+	privilege.doPrivileged(new Runnable() {
+		public void run() {
+		    try {
+			Object builder =
+			    Thread.class.getMethod("ofVirtual").invoke(null);
+			Class<?> clsBuilder =
+			    Class.forName("java.lang.Thread$Builder");
+
+			virtualThreadBuilder = builder;
+			virtualThreadUnstarted =
+			    clsBuilder.getMethod("unstarted", Runnable.class);
+		    }
+		    catch (Exception e) {
+			System.out.print(" (no virtual threads)");
+		    }
+		}
+	    });
+    }
+
+    /**
+     * Create the JVM thread to run a TCB, using the configured kind of
+     * thread. Must be called with privilege.
+     */
+    private static Thread createJavaThread(Runnable target) {
+	if (virtualThreadUnstarted != null) {
+	    try {
+		return (Thread) virtualThreadUnstarted.invoke(
+		    virtualThreadBuilder, target);
+	    }
+	    catch (Exception e) {
+		Lib.assertNotReached("cannot create virtual thread: " + e);
+	    }
+	}
+
+	if (stackSize > 0)
+	    return new Thread(null, target, "TCB", stackSize);
+	else
+	    return new Thread(target);
     }
     
     /**
@@ -94,7 +172,7 @@ public final class TCB {
 		};
 
 	    privilege.doPrivileged(new Runnable() {
-		    public void run() { javaThread = new Thread(tcbTarget); }
+		    public void run() { javaThread = createJavaThread(tcbTarget); }
 		});
 
 	    /* The Java thread hasn't yet started, but we need to get it
@@ -119,6 +197,14 @@ public final class TCB {
 	}
     }
 
+    /**
+     * Return the maximum number of started, non-destroyed TCBs that can be
+     * in existence, as set by <tt>TCB.maxThreads</tt>.
+     */
+    public static int getMaxThreads() {
+	return maxThreads;
+    }
+
     /**
      * Return the TCB of the currently running thread.
      */
@@ -287,7 +373,20 @@ public final class TCB {
      * from this TCB to another. We don't rely on <tt>currentTCB</tt>, since it
      * is updated by <tt>contextSwitch()</tt> before we get called.
      */
-    private synchronized void waitForInterrupt() {
+    private void waitForInterrupt() {
+	if (!parkHandoff) {
+	    waitOnMonitor();
+	    return;
+	}
+
+	for (int i=0; i<spinCount && !running; i++)
+	    ;
+
+	while (!running)
+	    LockSupport.park(this);
+    }
+
+    private synchronized void waitOnMonitor() {
 	while (!running) {
 	    try { wait(); }
 	    catch (InterruptedException e) { }
@@ -300,7 +399,17 @@ public final class TCB {
      * starting and destroying TCBs, as well as in context switching to this
      * TCB.
      */
-    private synchronized void interrupt() {
+    private void interrupt() {
+	if (!parkHandoff) {
+	    notifyMonitor();
+	    return;
+	}
+
+	running = true;
+	LockSupport.unpark(javaThread);
+    }
+
+    private synchronized void notifyMonitor() {
 	running = true;
 	notify();
     }
@@ -328,9 +437,23 @@ public final class TCB {
 
     /**
      * The maximum number of started, non-destroyed TCB's that can be in
-     * existence.
+     * existence. Set by <tt>TCB.maxThreads</tt>; defaults to 250.
+     */
+    private static int maxThreads = 250;
+
+    /**
+     * <tt>true</tt> to hand off with <tt>LockSupport.park()</tt> rather than
+     * a monitor.
      */
-    public static final int maxThreads = 250;
+    private static boolean parkHandoff = false;
+    /** Iterations to spin before parking, when handing off by parking. */
+    private static int spinCount = 0;
+    /** Stack size of new platform threads, or 0 for the JVM's default. */
+    private static long stackSize = 0;
+    /** The virtual thread builder, or <tt>null</tt> if not in use. */
+    private static Object virtualThreadBuilder = null;
+    /** <tt>Thread.Builder.unstarted()</tt>, or <tt>null</tt> if not in use. */
+    private static Method virtualThreadUnstarted = null;
 
     /**
      * A reference to the currently running TCB. It is initialized to
@@ -386,9 +509,10 @@ public final class TCB {
      * started and have not terminated. <tt>running</tt> is only <tt>true</tt>
      * when the associated Java thread ought to run ASAP. When starting or
      * destroying a TCB, this is temporarily true for a thread other than that
-     * of the current TCB.
+     * of the current TCB. Volatile so that setting it publishes everything
+     * the waking TCB wrote, even without a monitor.
      */
-    private boolean running = false;
+    private volatile boolean running = false;
 
     /**
      * Set to <tt>true</tt> by <tt>destroy()</tt>, so that when
@@ -0,0 +1,26 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+/**
+ * A TLB replacement policy. When every entry of a TLB set holds a valid
+ * translation, the processor asks its replacement policy which entry to
+ * replace. The policy is chosen by the <tt>Processor.tlbReplacement</tt>
+ * configuration key.
+ *
+ * @see	nachos.machine.Processor#chooseTLBEntry
+ */
+public interface TLBReplacement {
+    /**
+     * Choose the entry to replace in a full TLB set. The set consists of the
+     * TLB entries numbered <i>firstEntry</i> through
+     * <i>firstEntry</i>+<i>numEntries</i>-1.
+     *
+     * @param	processor	the processor whose TLB is full.
+     * @param	firstEntry	the number of the first entry in the set.
+     * @param	numEntries	the number of entries in the set.
+     * @return	the number of the entry to replace.
+     */
+    public int chooseVictim(Processor processor, int firstEntry,
+			    int numEntries);
+}
@@ -13,6 +13,12 @@ import nachos.security.*;
  * interrupt to occur every time approximately 500 clock ticks pass. There is
  * a small degree of randomness here, so interrupts do not occur exactly every
  * 500 ticks.
+ *
+ * <p>
+ * If <tt>Timer.tickless</tt> is <tt>true</tt>, the timer is instead a
+ * one-shot timer: it only interrupts at the times requested with
+ * <tt>requestInterrupt()</tt>, so that the kernel does not pay for interrupts
+ * when nothing needs to happen.
  */
 public final class Timer {
     /**
@@ -37,7 +43,9 @@ public final class Timer {
 		}
 	    };
 
-	scheduleInterrupt();
+	tickless = Config.getBoolean("Timer.tickless", false);
+	if (!tickless)
+	    scheduleInterrupt();
     }
 
     /**
@@ -59,8 +67,44 @@ public final class Timer {
 	return privilege.stats.totalTicks;
     }
 
+    /**
+     * Test whether this timer only interrupts when requested.
+     *
+     * @return	<tt>true</tt> if this timer is in tickless mode.
+     */
+    public boolean isTickless() {
+	return tickless;
+    }
+
+    /**
+     * In tickless mode, request a timer interrupt at the specified time, or
+     * as soon as possible if that time has passed. If an earlier interrupt
+     * has already been requested, this does nothing; otherwise this request
+     * replaces the one made earlier. Once an interrupt happens, no further
+     * interrupt happens until another is requested. Does nothing if the timer
+     * is not in tickless mode.
+     *
+     * @param	time	the time at which to interrupt.
+     */
+    public void requestInterrupt(long time) {
+	if (!tickless || time >= nextInterrupt)
+	    return;
+
+	nextInterrupt = time;
+	privilege.interrupt.schedule(Math.max(time - getTime(), 1), "timer",
+				     timerInterrupt);
+    }
+
     private void timerInterrupt() {
-	scheduleInterrupt();
+	if (tickless) {
+	    // ignore requests that were replaced by earlier ones
+	    if (getTime() < nextInterrupt)
+		return;
+	    nextInterrupt = Long.MAX_VALUE;
+	}
+	else {
+	    scheduleInterrupt();
+	}
 	scheduleAutoGraderInterrupt();
 
 	lastTimerInterrupt = getTime();
@@ -80,6 +124,10 @@ public final class Timer {
 	privilege.interrupt.schedule(1, "timerAG", autoGraderInterrupt);
     }
 
+    private boolean tickless;
+    /** In tickless mode, the time of the requested interrupt, if any. */
+    private long nextInterrupt = Long.MAX_VALUE;
+
     private long lastTimerInterrupt;
     private Runnable timerInterrupt;
     private Runnable autoGraderInterrupt;
@@ -158,6 +158,26 @@ public abstract class Privilege {
 	 *		MIPS user code.
 	 */
 	public void tick(boolean inKernelMode);
+
+	/**
+	 * Advance the simulated time by the execution of several MIPS
+	 * instructions at once. This has the same effect as calling
+	 * <tt>tick(false)</tt> once per instruction, provided that no
+	 * interrupt becomes due before the last instruction completes.
+	 *
+	 * @param	numInstructions	the number of user instructions that were
+	 *				executed.
+	 */
+	public void tickUser(int numInstructions);
+
+	/**
+	 * Return the number of ticks that may elapse before the next pending
+	 * interrupt is due.
+	 *
+	 * @return	the number of ticks until the next interrupt, or
+	 *		<tt>Long.MAX_VALUE</tt> if no interrupts are pending.
+	 */
+	public long ticksUntilNextInterrupt();
     }
 
     /**
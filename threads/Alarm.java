@@ -1,15 +1,23 @@
 package nachos.threads;
 
-import java.util.TreeMap;
-
 import nachos.machine.*;
 
 /**
  * Uses the hardware timer to provide preemption, and to allow threads to sleep
  * until a certain time.
+ *
+ * <p>
+ * Sleeping threads are kept in a hierarchical timing wheel. Each level has 64
+ * slots, and a slot at level <i>k</i> covers 64<sup><i>k</i></sup> ticks, so
+ * 11 levels cover every possible wake time. A thread is placed at the lowest
+ * level whose slots can tell its wake time apart from the current time, and
+ * moves down a level each time the wheel reaches its slot, until it is woken
+ * from level 0. Any number of threads can share a slot: they are linked
+ * through fields of <tt>KThread</tt>, so sleeping allocates nothing. Sleeping
+ * and waking each take constant time, and a timer interrupt only looks at
+ * the slots that are occupied.
  */
 public class Alarm {
-	private TreeMap<Long, KThread> alarmList;
     /**
      * Allocate a new Alarm. Set the machine's timer interrupt handler to this
      * alarm's callback.
@@ -18,7 +26,8 @@ public class Alarm {
      * alarm.
      */
     public Alarm() {
-    alarmList = new TreeMap<Long, KThread>();
+	wheelTime = Machine.timer().getTime();
+
 	Machine.timer().setInterruptHandler(new Runnable() {
 		public void run() { timerInterrupt(); }
 	    });
@@ -28,21 +37,35 @@ public class Alarm {
      * The timer interrupt handler. This is called by the machine's timer
      * periodically (approximately every 500 clock ticks). Causes the current
      * thread to yield, forcing a context switch if there is another thread
-     * that should be run.
+     * that should be run, unless the scheduler says its time slice has not
+     * run out.
      */
     public void timerInterrupt() {
 		boolean intStatus = Machine.interrupt().disable();
-		long currentTime = Machine.timer().getTime();
-		while(!alarmList.isEmpty()){
-			if (alarmList.firstKey() <= currentTime){
-				alarmList.pollFirstEntry().getValue().ready(); 
-			} else {
-				break;
-			}
+
+		long time = Machine.timer().getTime();
+		advance(time);
+
+		boolean preempt;
+		if (Machine.timer().isTickless()) {
+			// yielding when no other thread is ready would be wasted
+			preempt = KThread.hasReadyThreads() &&
+				ThreadedKernel.scheduler.shouldPreempt();
+
+			long next = nextSlotStart();
+			if (preempt)
+				next = Math.min(next, time + Stats.TimerTicks);
+			else if (KThread.hasReadyThreads())
+				next = Math.min(next, time + ThreadedKernel.scheduler.timeSliceRemaining());
+			Machine.timer().requestInterrupt(next);
+		}
+		else {
+			preempt = ThreadedKernel.scheduler.shouldPreempt();
 		}
 
 		Machine.interrupt().restore(intStatus);
-		KThread.currentThread().yield();
+		if (preempt)
+			KThread.preempt();
     }
 
     /**
@@ -61,10 +84,159 @@ public class Alarm {
      */
     public void waitUntil(long x) {
 		boolean intStatus = Machine.interrupt().disable();
-		alarmList.put(Machine.timer().getTime() + x, KThread.currentThread());
+
+		KThread thread = KThread.currentThread();
+		long time = Machine.timer().getTime();
+		thread.wakeTime = (x > Long.MAX_VALUE - time) ? Long.MAX_VALUE : time + x;
+
+		if (thread.wakeTime <= wheelTime) {
+			// already due; wake it at the next timer interrupt
+			thread.nextSleeper = due;
+			due = thread;
+		}
+		else {
+			insert(thread);
+		}
+
+		Machine.timer().requestInterrupt(thread.wakeTime);
+
 		KThread.sleep(); 
 		Machine.interrupt().restore(intStatus);
     }
+
+    /**
+     * Called with interrupts disabled when a thread becomes ready to run and
+     * no other thread was. With a tickless timer, this makes sure the timer
+     * interrupts when the current thread's time slice runs out.
+     */
+    void threadReady() {
+		Machine.timer().requestInterrupt(Machine.timer().getTime() +
+						 ThreadedKernel.scheduler.timeSliceRemaining());
+    }
+
+    /**
+     * Add a sleeping thread to the slot for its wake time, at the lowest
+     * level that tells its wake time apart from <tt>wheelTime</tt>.
+     */
+    private void insert(KThread thread) {
+		long diff = thread.wakeTime ^ wheelTime;
+		int level = (63 - Long.numberOfLeadingZeros(diff)) / bitsPerLevel;
+		int slot = (int) (thread.wakeTime >>> (level*bitsPerLevel)) & slotMask;
+
+		thread.nextSleeper = null;
+		if (heads[level][slot] == null)
+			heads[level][slot] = thread;
+		else
+			tails[level][slot].nextSleeper = thread;
+		tails[level][slot] = thread;
+
+		occupied[level] |= 1L << slot;
+    }
+
+    /**
+     * Turn the wheel forward to <i>time</i>, waking every thread whose wake
+     * time has been reached and moving the others down to lower levels as
+     * their slots are reached.
+     */
+    private void advance(long time) {
+		for (KThread thread = due; thread != null; ) {
+			KThread next = thread.nextSleeper;
+			thread.nextSleeper = null;
+			thread.ready();
+			thread = next;
+		}
+		due = null;
+
+		while (true) {
+			int level = nextLevel();
+			if (level < 0)
+				break;
+
+			long start = slotStart(level, Long.numberOfTrailingZeros(occupied[level]));
+			if (start > time)
+				break;
+
+			wheelTime = start;
+
+			int slot = Long.numberOfTrailingZeros(occupied[level]);
+			KThread thread = heads[level][slot];
+			heads[level][slot] = tails[level][slot] = null;
+			occupied[level] &= ~(1L << slot);
+
+			while (thread != null) {
+				KThread next = thread.nextSleeper;
+				if (thread.wakeTime <= wheelTime) {
+					thread.nextSleeper = null;
+					thread.ready();
+				}
+				else {
+					insert(thread);
+				}
+				thread = next;
+			}
+		}
+
+		// no occupied slot starts before time, so every thread keeps its place
+		wheelTime = time;
+    }
+
+    /**
+     * Return the level whose first occupied slot the wheel reaches first, or
+     * -1 if no thread is sleeping.
+     */
+    private int nextLevel() {
+		long start = Long.MAX_VALUE;
+		int level = -1;
+		for (int i=0; i<numLevels; i++) {
+			if (occupied[i] == 0)
+				continue;
+
+			long slotStart = slotStart(i, Long.numberOfTrailingZeros(occupied[i]));
+			if (slotStart < start) {
+				start = slotStart;
+				level = i;
+			}
+		}
+		return level;
+    }
+
+    /**
+     * Return the first tick of the first occupied slot the wheel reaches, or
+     * <tt>Long.MAX_VALUE</tt> if no thread is sleeping.
+     */
+    private long nextSlotStart() {
+		int level = nextLevel();
+		if (level < 0)
+			return Long.MAX_VALUE;
+
+		return slotStart(level, Long.numberOfTrailingZeros(occupied[level]));
+    }
+
+    /**
+     * Return the first tick of a slot at a level, in the span of the wheel
+     * that contains <tt>wheelTime</tt>. Occupied slots always come after the
+     * slot that contains <tt>wheelTime</tt>.
+     */
+    private long slotStart(int level, int slot) {
+		int shift = level*bitsPerLevel;
+		long above = (shift+bitsPerLevel >= 64) ? 0 : wheelTime & (-1L << (shift+bitsPerLevel));
+		return above | ((long) slot << shift);
+    }
+
+    private static final int bitsPerLevel = 6;
+    private static final int slotsPerLevel = 1 << bitsPerLevel;
+    private static final int slotMask = slotsPerLevel - 1;
+    private static final int numLevels = (63 + bitsPerLevel - 1) / bitsPerLevel;
+
+    /** The time the wheel has been turned to. */
+    private long wheelTime;
+    /** For each level, a bit for each slot that has a sleeping thread. */
+    private long[] occupied = new long[numLevels];
+    /** The first and last sleeping thread in each slot. */
+    private KThread[][] heads = new KThread[numLevels][slotsPerLevel];
+    private KThread[][] tails = new KThread[numLevels][slotsPerLevel];
+    /** Threads that were already due when they went to sleep. */
+    private KThread due = null;
 	
     private static final char dbgAlarm = 'a'; 	// Flag to enable Alarm debug output
 	/**
@@ -96,6 +268,53 @@ public class Alarm {
 		threadA.join(); threadB.join(); threadC.join();
 		
 		Lib.debug(dbgAlarm, (TestSeqThread.wakeSequence.equals("ABC") ? "[PASS]" : "[FAIL") + ": Threads woke up in order (" + TestSeqThread.wakeSequence + ")");
+		
+		// Test that threads waking at the same tick all wake up
+		final long wakeAt = Machine.timer().getTime() + 2000;
+		KThread[] same = new KThread[10];
+		for (int i=0; i<same.length; i++) {
+			same[i] = new KThread(new TestWakeThread(wakeAt));
+			same[i].fork();
+		}
+		for (int i=0; i<same.length; i++)
+			same[i].join();
+		
+		Lib.debug(dbgAlarm, ((TestWakeThread.numWoken == same.length && TestWakeThread.numEarly == 0) ? "[PASS]" : "[FAIL]") + ": " + TestWakeThread.numWoken + " threads sleeping until the same tick woke up");
+		
+		// Test that many sleepers with spread out wake times all wake up on time
+		TestWakeThread.numWoken = 0;
+		KThread[] many = new KThread[200];
+		for (int i=0; i<many.length; i++) {
+			many[i] = new KThread(new TestWakeThread(Machine.timer().getTime() + Lib.random(100000)));
+			many[i].fork();
+		}
+		for (int i=0; i<many.length; i++)
+			many[i].join();
+		
+		Lib.debug(dbgAlarm, ((TestWakeThread.numWoken == many.length && TestWakeThread.numEarly == 0) ? "[PASS]" : "[FAIL]") + ": " + TestWakeThread.numWoken + " of " + many.length + " sleeping threads woke up on time");
+	}
+	
+	/**
+	 * For testing:
+	 * Thread which sleeps until an absolute time, and counts whether it
+	 * woke up, and whether it woke up too early
+	 */
+	private static class TestWakeThread implements Runnable {
+		long myWakeTime;
+		
+		static int numWoken = 0;
+		static int numEarly = 0;
+		
+		public TestWakeThread(long wakeTime) {
+			myWakeTime = wakeTime;
+		}
+		
+		public void run() {
+			ThreadedKernel.alarm.waitUntil(myWakeTime - Machine.timer().getTime());
+			if (Machine.timer().getTime() < myWakeTime)
+				numEarly++;
+			numWoken++;
+		}
 	}
 	
 	/**
@@ -0,0 +1,100 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A <tt>Barrier</tt> makes a fixed number of threads wait for each other:
+ * each thread that calls <tt>await()</tt> waits until that many threads have
+ * called it, and then they all continue. The barrier can then be used again
+ * by the same number of threads.
+ */
+public class Barrier {
+    /**
+     * Allocate a new barrier.
+     *
+     * @param	parties	the number of threads that must call
+     *			<tt>await()</tt> before any of them continues.
+     */
+    public Barrier(int parties) {
+	Lib.assertTrue(parties > 0);
+	this.parties = parties;
+    }
+
+    /**
+     * Wait until <tt>parties</tt> threads, including this one, have called
+     * <tt>await()</tt> since the barrier was last passed.
+     *
+     * @return	the number of threads that arrived before this one, from 0
+     *		to <tt>parties</tt>-1.
+     */
+    public int await() {
+	lock.acquire();
+
+	int arrival = numArrived++;
+	if (numArrived == parties) {
+	    // release this generation, and start the next
+	    numArrived = 0;
+	    generation++;
+	    passed.wakeAll();
+	}
+	else {
+	    int myGeneration = generation;
+	    while (generation == myGeneration)
+		passed.sleep();
+	}
+
+	lock.release();
+	return arrival;
+    }
+
+    private static class BarrierTest implements Runnable {
+	BarrierTest(Barrier barrier, CountDownLatch done) {
+	    this.barrier = barrier;
+	    this.done = done;
+	}
+
+	public void run() {
+	    for (int i=0; i<rounds; i++) {
+		round[i]++;
+		barrier.await();
+		// nobody gets here until everybody has finished the round
+		if (round[i] != threads)
+		    failed = true;
+		barrier.await();
+	    }
+	    done.countDown();
+	}
+
+	private Barrier barrier;
+	private CountDownLatch done;
+    }
+
+    /**
+     * Test this class and <tt>CountDownLatch</tt>.
+     */
+    public static void selfTest() {
+	Barrier barrier = new Barrier(threads);
+	CountDownLatch done = new CountDownLatch(threads);
+
+	for (int i=0; i<threads; i++)
+	    new KThread(new BarrierTest(barrier, done)).setName("barrier").fork();
+
+	done.await();
+
+	System.out.println(((!failed && done.getCount() == 0) ? "[PASS]" : "[FAIL]")
+			   + ": " + threads + " threads passed the barrier "
+			   + rounds + " times together");
+    }
+
+    private static final int threads = 4;
+    private static final int rounds = 5;
+    private static int[] round = new int[rounds];
+    private static boolean failed = false;
+
+    private int parties;
+    private int numArrived = 0;
+    /** The number of times the barrier has been passed. */
+    private int generation = 0;
+    private Lock lock = new Lock();
+    private Condition2 passed = new Condition2(lock);
+}
@@ -0,0 +1,265 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A <i>bounded communicator</i> passes messages of any type from speakers to
+ * listeners through a buffer of fixed capacity. Unlike a
+ * <tt>Communicator</tt>, a speaker does not wait for a listener: it only
+ * waits while the buffer is full, and a listener only waits while the buffer
+ * is empty. Messages are received in the order they were spoken.
+ *
+ * <p>
+ * <tt>speakAll()</tt> and <tt>listenAll()</tt> move many messages under one
+ * acquisition of the lock and wake the other side at most once per batch, so
+ * a producer and consumer can pass a whole buffer of messages per context
+ * switch. The messages of one <tt>speakAll()</tt> may be interleaved with
+ * those of other speakers when the batch does not fit in the buffer.
+ */
+public class BoundedCommunicator<T> {
+    /**
+     * Allocate a new bounded communicator, with a capacity of
+     * <tt>BoundedCommunicator.capacity</tt> messages.
+     */
+    public BoundedCommunicator() {
+	this(Config.getInteger("BoundedCommunicator.capacity", 16));
+    }
+
+    /**
+     * Allocate a new bounded communicator.
+     *
+     * @param	capacity	the number of messages that can be spoken
+     *				before a listener receives them.
+     */
+    public BoundedCommunicator(int capacity) {
+	Lib.assertTrue(capacity > 0);
+
+	buffer = new Object[capacity];
+    }
+
+    /**
+     * Add <i>word</i> to the buffer, first waiting until there is room.
+     *
+     * @param	word	the message to transfer.
+     */
+    public void speak(T word) {
+	lock.acquire();
+
+	while (count == buffer.length)
+	    notFull.sleep();
+
+	put(word);
+	if (count == 1)
+	    notEmpty.wake();
+	if (count < buffer.length)
+	    notFull.wake();
+
+	lock.release();
+    }
+
+    /**
+     * Add every message in <i>words</i> to the buffer, in order, waiting for
+     * room whenever the buffer is full.
+     *
+     * @param	words	the messages to transfer.
+     */
+    public void speakAll(T[] words) {
+	lock.acquire();
+
+	int spoken = 0;
+	while (spoken < words.length) {
+	    while (count == buffer.length)
+		notFull.sleep();
+
+	    boolean wasEmpty = (count == 0);
+	    while (spoken < words.length && count < buffer.length)
+		put(words[spoken++]);
+
+	    if (wasEmpty)
+		notEmpty.wake();
+	}
+
+	if (count < buffer.length)
+	    notFull.wake();
+
+	lock.release();
+    }
+
+    /**
+     * Remove the oldest message from the buffer, first waiting until there is
+     * one.
+     *
+     * @return	the message transferred.
+     */
+    public T listen() {
+	lock.acquire();
+
+	while (count == 0)
+	    notEmpty.sleep();
+
+	T word = take();
+	if (count == buffer.length-1)
+	    notFull.wake();
+	if (count > 0)
+	    notEmpty.wake();
+
+	lock.release();
+
+	return word;
+    }
+
+    /**
+     * Remove the oldest messages from the buffer into <i>words</i>, first
+     * waiting until there is at least one. Does not wait for more messages
+     * once there is one.
+     *
+     * @param	words	the array to fill with messages, from index 0.
+     * @return	the number of messages transferred, between 1 and
+     *		<tt>words.length</tt>.
+     */
+    public int listenAll(T[] words) {
+	Lib.assertTrue(words.length > 0);
+
+	lock.acquire();
+
+	while (count == 0)
+	    notEmpty.sleep();
+
+	boolean wasFull = (count == buffer.length);
+	int heard = 0;
+	while (heard < words.length && count > 0)
+	    words[heard++] = take();
+
+	if (wasFull)
+	    notFull.wake();
+	if (count > 0)
+	    notEmpty.wake();
+
+	lock.release();
+
+	return heard;
+    }
+
+    /**
+     * Add a message to the end of the buffer, which must not be full.
+     */
+    private void put(T word) {
+	buffer[(first + count) % buffer.length] = word;
+	count++;
+    }
+
+    /**
+     * Remove the message at the front of the buffer, which must not be empty.
+     */
+    @SuppressWarnings("unchecked")
+    private T take() {
+	T word = (T) buffer[first];
+	buffer[first] = null;
+	first = (first + 1) % buffer.length;
+	count--;
+
+	return word;
+    }
+
+    private static class Producer implements Runnable {
+	Producer(BoundedCommunicator<Integer> com, int start, boolean batch) {
+	    this.com = com;
+	    this.start = start;
+	    this.batch = batch;
+	}
+
+	public void run() {
+	    if (batch) {
+		Integer[] words = new Integer[numWords];
+		for (int i=0; i<numWords; i++)
+		    words[i] = start + i;
+		com.speakAll(words);
+	    }
+	    else {
+		for (int i=0; i<numWords; i++)
+		    com.speak(start + i);
+	    }
+	}
+
+	private BoundedCommunicator<Integer> com;
+	private int start;
+	private boolean batch;
+    }
+
+    private static class Consumer implements Runnable {
+	Consumer(BoundedCommunicator<Integer> com, boolean batch) {
+	    this.com = com;
+	    this.batch = batch;
+	}
+
+	public void run() {
+	    int heard = 0;
+
+	    while (heard < numWords) {
+		if (batch) {
+		    // never take words meant for the other consumer
+		    Integer[] words = new Integer[Math.min(5, numWords - heard)];
+		    int n = com.listenAll(words);
+		    for (int i=0; i<n; i++)
+			hear(words[i]);
+		    heard += n;
+		}
+		else {
+		    hear(com.listen());
+		    heard++;
+		}
+	    }
+	}
+
+	private void hear(int word) {
+	    // words from one producer must arrive in order
+	    int producer = word / numWords;
+	    if (word <= last[producer])
+		outOfOrder = true;
+	    last[producer] = word;
+	    sum += word;
+	}
+
+	private BoundedCommunicator<Integer> com;
+	private boolean batch;
+	private int[] last = { -1, -1 };
+    }
+
+    /**
+     * Test if this module is working.
+     */
+    public static void selfTest() {
+	BoundedCommunicator<Integer> com = new BoundedCommunicator<Integer>(4);
+
+	// two producers and two consumers, one of each batching
+	KThread[] threads = new KThread[] {
+	    new KThread(new Producer(com, 0, false)).setName("producer"),
+	    new KThread(new Producer(com, numWords, true)).setName("producer"),
+	    new KThread(new Consumer(com, false)).setName("consumer"),
+	    new KThread(new Consumer(com, true)).setName("consumer"),
+	};
+
+	for (int i=0; i<threads.length; i++)
+	    threads[i].fork();
+	for (int i=0; i<threads.length; i++)
+	    threads[i].join();
+
+	int expected = (2*numWords) * (2*numWords - 1) / 2;
+	System.out.println(((sum == expected && !outOfOrder) ? "[PASS]" : "[FAIL]")
+			   + ": " + 2*numWords + " words passed in order, sum "
+			   + sum);
+    }
+
+    private static final int numWords = 100;
+    private static int sum = 0;
+    private static boolean outOfOrder = false;
+
+    /** The messages spoken but not yet heard, from <tt>first</tt> on. */
+    private Object[] buffer;
+    private int first = 0;
+    private int count = 0;
+
+    private Lock lock = new Lock();
+    private Condition2 notEmpty = new Condition2(lock);
+    private Condition2 notFull = new Condition2(lock);
+}
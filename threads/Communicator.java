@@ -99,12 +99,15 @@ public class Communicator {
     	speakCondition.wake();
     	listenCondition.wake();       	
     	
-    	lock.release();  
-    	
-    	// Reset the current speaker to indicate we are done listening.
+    	// Reset the current speaker to indicate we are done listening. This
+    	// must happen while holding the lock, or the next speaker could be
+    	// erased.
     	currentSpeaker = null;
+    	int word = msg;
+    	
+    	lock.release();  
     	
-    	return msg;
+    	return word;
     }       
     
     public static void selfTest() {
@@ -39,31 +39,43 @@ public class Condition2 {
     public void sleep() {
     	Lib.assertTrue(conditionLock.isHeldByCurrentThread());
 
-    	conditionLock.release();
-    	
     	// Add the current thread to the waitQueue for this condition
-    	// and then put it to sleep.
+    	// and then put it to sleep. Interrupts stay disabled from before the
+    	// lock is released until the thread is queued, so that a wake()
+    	// in between cannot be lost.
     	boolean intStatus = Machine.interrupt().disable();
+    	conditionLock.release();
     	waitQueue.add(KThread.currentThread()); 
-    	KThread.sleep(); 
-    	Machine.interrupt().restore(intStatus);	
+    	KThread.sleep(ThreadStats.conditionWait);
 
-    	conditionLock.acquire();
+    	// wake() either moved us to the lock's wait queue, in which case the
+    	// lock has been handed to us, or just made us ready.
+    	if (!conditionLock.isHeldByCurrentThread())
+    		conditionLock.acquire();
+    	Machine.interrupt().restore(intStatus);	
     }
 
     /**
      * Wake up at most one thread sleeping on this condition variable. The
      * current thread must hold the associated lock.
+     *
+     * <p>
+     * If other threads are already waiting for the lock, the woken thread is
+     * moved straight onto the lock's wait queue rather than being made
+     * ready, and runs once the lock is handed to it.
      */
     public void wake() {
     	Lib.assertTrue(conditionLock.isHeldByCurrentThread());
-    	
-    	// If we have threads waiting on this condition, get the first one
-    	// off the waitQueue and add it to the readyQueue.
+
+    	// Threads only join the waitQueue while holding the lock, so it
+    	// cannot change while we hold it.
+    	if (waitQueue.isEmpty())
+    		return;
+
+    	// Get the first thread off the waitQueue and make it reacquire the
+    	// lock.
     	boolean intStatus = Machine.interrupt().disable();    	
-    	if(!waitQueue.isEmpty() && waitQueue.peek() != null) {
-    		waitQueue.poll().ready();
-    	}  
+    	conditionLock.wakeToAcquire(waitQueue.poll());
     	Machine.interrupt().restore(intStatus);
     }
 
@@ -75,11 +87,9 @@ public class Condition2 {
     	Lib.assertTrue(conditionLock.isHeldByCurrentThread());
     	
     	// If we have threads waiting on this condition, wake them all up.
-    	boolean intStatus = Machine.interrupt().disable();
     	while(!waitQueue.isEmpty()) {
     		wake();
     	}
-    	Machine.interrupt().restore(intStatus);
     }   
     
     
@@ -158,8 +168,12 @@ public class Condition2 {
 		WakeCounter.lock = lock;
 		WakeCounter.cond = cond;
 		
-		new KThread(new WakeCounter()).fork();
-		new KThread(new WakeCounter()).fork();
+		KThread[] counters = new KThread[4];
+		counters[0] = new KThread(new WakeCounter());
+		counters[1] = new KThread(new WakeCounter());
+		counters[0].fork();
+		counters[1].fork();
+		WakeCounter.waitUntilAsleep(2);
 		thread = new KThread(new Runnable() {
 			public void run() {
 				lock.acquire();
@@ -170,13 +184,20 @@ public class Condition2 {
 		thread.fork();
 		thread.join();
 		
+		// Give the woken thread the chance to count itself.
+		while (WakeCounter.wakeups == 0)
+			KThread.yield();
+		
 		System.out.println((WakeCounter.wakeups == 1 ? "[PASS]" : "[FAIL]") + ": Only 1 sleeping thread woken by Condition2.wake(). (" + WakeCounter.wakeups + ")");
 
 		// Verify that wakeAll() wakes up all threads
 		WakeCounter.wakeups = 0;
 		
-		new KThread(new WakeCounter()).fork();
-		new KThread(new WakeCounter()).fork();
+		counters[2] = new KThread(new WakeCounter());
+		counters[3] = new KThread(new WakeCounter());
+		counters[2].fork();
+		counters[3].fork();
+		WakeCounter.waitUntilAsleep(3);
 		thread = new KThread(new Runnable() {
 			public void run() {
 				lock.acquire();
@@ -186,7 +207,11 @@ public class Condition2 {
 		});
 		thread.fork();
 		thread.join();
-		
+
+		// Every counter must finish, having been woken, in whatever order.
+		for (int i=0; i<counters.length; i++)
+			counters[i].join();
+
 		// Notice: this should wake up the thread that's still hanging around from the last test, in addition to the new ones.
 		System.out.println((WakeCounter.wakeups == 3 ? "[PASS]" : "[FAIL]") + ": All sleeping threads woken by Condition2.wakeAll(). (" + WakeCounter.wakeups + ")");
 	}
@@ -196,14 +221,31 @@ public class Condition2 {
 	 */
 	static class WakeCounter implements Runnable {
 		public static int wakeups = 0;
+		public static int asleep = 0;
 		public static Lock lock = null;
 		public static Condition2 cond = null;
 		
 		public void run() {
 			lock.acquire();
+			asleep++;
 			cond.sleep();
+			asleep--;
 			wakeups++;
 			lock.release();
 		}
+		
+		/**
+		 * Yield until the specified number of counters are asleep.
+		 */
+		public static void waitUntilAsleep(int count) {
+			while (true) {
+				lock.acquire();
+				boolean ready = (asleep >= count);
+				lock.release();
+				if (ready)
+					return;
+				KThread.yield();
+			}
+		}
 	}
 }
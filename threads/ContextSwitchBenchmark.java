@@ -0,0 +1,246 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * Measures the cost of context switches and synchronization operations under
+ * whichever scheduler the kernel was configured with. Each benchmark runs a
+ * warm-up round, then <tt>ContextSwitchBenchmark.rounds</tt> timed rounds of
+ * <tt>ContextSwitchBenchmark.iterations</tt> operations each, and reports the
+ * best and median real time per operation, along with the simulated ticks per
+ * operation.
+ *
+ * <p>
+ * Run it by setting <tt>ThreadedKernel.benchmark = true</tt>. Compare
+ * schedulers or TCB backends by changing <tt>ThreadedKernel.scheduler</tt> or
+ * <tt>TCB.backend</tt> and running it again.
+ */
+public class ContextSwitchBenchmark {
+    /**
+     * Run every benchmark and print the results.
+     */
+    public static void selfTest() {
+	iterations = Config.getInteger("ContextSwitchBenchmark.iterations",
+				       2000);
+	rounds = Config.getInteger("ContextSwitchBenchmark.rounds", 5);
+
+	System.out.println("Context switch benchmark ("
+			   + Config.getString("ThreadedKernel.scheduler")
+			   + ", " + iterations + " operations x "
+			   + rounds + " rounds)");
+
+	measure("yield", new YieldBenchmark());
+	measure("fork/join", new JoinBenchmark());
+	measure("semaphore ping-pong", new SemaphoreBenchmark());
+	measure("lock handoff", new LockBenchmark());
+	measure("speak/listen", new CommunicatorBenchmark());
+	measure("bounded speak/listen", new BoundedBenchmark(false));
+	measure("batched speak/listen", new BoundedBenchmark(true));
+    }
+
+    /**
+     * A benchmark. <tt>run()</tt> performs <tt>iterations</tt> operations and
+     * returns the number of operations it performed, which may differ when
+     * one iteration performs several operations.
+     */
+    private interface Benchmark {
+	public int run();
+    }
+
+    private static void measure(String name, Benchmark benchmark) {
+	// let the JIT compile the paths being measured
+	benchmark.run();
+
+	long[] nanos = new long[rounds];
+	long ticks = 0;
+	int operations = 0;
+
+	for (int i=0; i<rounds; i++) {
+	    long startTicks = Machine.timer().getTime();
+	    long start = System.nanoTime();
+
+	    operations = benchmark.run();
+
+	    nanos[i] = System.nanoTime() - start;
+	    ticks += Machine.timer().getTime() - startTicks;
+	}
+
+	java.util.Arrays.sort(nanos);
+
+	System.out.println("  " + name + ": "
+			   + nanos[0]/operations + " ns/op best, "
+			   + nanos[rounds/2]/operations + " ns/op median, "
+			   + ticks/((long) operations*rounds) + " ticks/op");
+    }
+
+    /**
+     * Fork a thread that runs the specified target, and return it.
+     */
+    private static KThread fork(String name, Runnable target) {
+	KThread thread = new KThread(target).setName(name);
+	thread.fork();
+	return thread;
+    }
+
+    /** Two threads yielding to each other; one operation per switch. */
+    private static class YieldBenchmark implements Benchmark {
+	public int run() {
+	    KThread other = fork("yield partner", new Runnable() {
+		    public void run() {
+			for (int i=0; i<iterations; i++)
+			    KThread.yield();
+		    }
+		});
+
+	    for (int i=0; i<iterations; i++)
+		KThread.yield();
+
+	    other.join();
+	    return iterations*2;
+	}
+    }
+
+    /** Forking a thread that does nothing, and joining it. */
+    private static class JoinBenchmark implements Benchmark {
+	public int run() {
+	    Runnable empty = new Runnable() {
+		    public void run() {
+		    }
+		};
+
+	    for (int i=0; i<iterations; i++)
+		fork("join target", empty).join();
+
+	    return iterations;
+	}
+    }
+
+    /** Two threads passing control back and forth with semaphores. */
+    private static class SemaphoreBenchmark implements Benchmark {
+	public int run() {
+	    final Semaphore ping = new Semaphore(0);
+	    final Semaphore pong = new Semaphore(0);
+
+	    KThread other = fork("pong", new Runnable() {
+		    public void run() {
+			for (int i=0; i<iterations; i++) {
+			    ping.P();
+			    pong.V();
+			}
+		    }
+		});
+
+	    for (int i=0; i<iterations; i++) {
+		ping.V();
+		pong.P();
+	    }
+
+	    other.join();
+	    return iterations*2;
+	}
+    }
+
+    /**
+     * Two threads taking turns holding a lock, each yielding while holding
+     * it so that every acquire blocks and every release hands the lock over.
+     */
+    private static class LockBenchmark implements Benchmark {
+	public int run() {
+	    final Lock lock = new Lock();
+	    Runnable contender = new Runnable() {
+		    public void run() {
+			for (int i=0; i<iterations; i++) {
+			    lock.acquire();
+			    KThread.yield();
+			    lock.release();
+			}
+		    }
+		};
+
+	    KThread other = fork("lock contender", contender);
+	    contender.run();
+
+	    other.join();
+	    return iterations*2;
+	}
+    }
+
+    /** One speaker passing words to one listener. */
+    private static class CommunicatorBenchmark implements Benchmark {
+	public int run() {
+	    final Communicator communicator = new Communicator();
+
+	    KThread listener = fork("listener", new Runnable() {
+		    public void run() {
+			for (int i=0; i<iterations; i++)
+			    Lib.assertTrue(communicator.listen() == i);
+		    }
+		});
+
+	    for (int i=0; i<iterations; i++)
+		communicator.speak(i);
+
+	    listener.join();
+	    return iterations;
+	}
+    }
+
+    /**
+     * One speaker passing words to one listener through a
+     * <tt>BoundedCommunicator</tt>, one word at a time or in batches.
+     */
+    private static class BoundedBenchmark implements Benchmark {
+	BoundedBenchmark(boolean batch) {
+	    this.batch = batch;
+	}
+
+	public int run() {
+	    final BoundedCommunicator<Integer> communicator =
+		new BoundedCommunicator<Integer>(batchSize);
+
+	    KThread listener = fork("listener", new Runnable() {
+		    public void run() {
+			Integer[] words = new Integer[batchSize];
+			int heard = 0;
+			while (heard < iterations) {
+			    if (batch) {
+				int n = communicator.listenAll(words);
+				for (int i=0; i<n; i++)
+				    Lib.assertTrue(words[i] == heard + i);
+				heard += n;
+			    }
+			    else {
+				Lib.assertTrue(communicator.listen() == heard);
+				heard++;
+			    }
+			}
+		    }
+		});
+
+	    if (batch) {
+		Integer[] words = new Integer[batchSize];
+		for (int i=0; i<iterations; i+=batchSize) {
+		    Integer[] batchWords = words;
+		    if (iterations - i < batchSize)
+			batchWords = new Integer[iterations - i];
+		    for (int j=0; j<batchWords.length; j++)
+			batchWords[j] = i + j;
+		    communicator.speakAll(batchWords);
+		}
+	    }
+	    else {
+		for (int i=0; i<iterations; i++)
+		    communicator.speak(i);
+	    }
+
+	    listener.join();
+	    return iterations;
+	}
+
+	private boolean batch;
+	private static final int batchSize = 16;
+    }
+
+    private static int iterations;
+    private static int rounds;
+}
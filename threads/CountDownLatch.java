@@ -0,0 +1,70 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A <tt>CountDownLatch</tt> lets threads wait until a count of events has
+ * happened:
+ *
+ * <ul>
+ * <li><tt>countDown()</tt>: record one event.
+ * <li><tt>await()</tt>: wait until the count reaches zero.
+ * </ul>
+ *
+ * <p>
+ * Once the count reaches zero it stays there, and <tt>await()</tt> returns
+ * immediately.
+ */
+public class CountDownLatch {
+    /**
+     * Allocate a new latch.
+     *
+     * @param	count	the number of calls to <tt>countDown()</tt> before
+     *			waiting threads are released.
+     */
+    public CountDownLatch(int count) {
+	Lib.assertTrue(count >= 0);
+	this.count = count;
+    }
+
+    /**
+     * Record an event, releasing every waiting thread if it is the last.
+     */
+    public void countDown() {
+	lock.acquire();
+
+	if (count > 0 && --count == 0)
+	    zero.wakeAll();
+
+	lock.release();
+    }
+
+    /**
+     * Wait until the count reaches zero.
+     */
+    public void await() {
+	lock.acquire();
+
+	while (count > 0)
+	    zero.sleep();
+
+	lock.release();
+    }
+
+    /**
+     * Return the number of events still to happen.
+     *
+     * @return	the current count.
+     */
+    public int getCount() {
+	lock.acquire();
+	int result = count;
+	lock.release();
+
+	return result;
+    }
+
+    private int count;
+    private Lock lock = new Lock();
+    private Condition2 zero = new Condition2(lock);
+}
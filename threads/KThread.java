@@ -43,11 +43,13 @@ public class KThread {
 	 * create an idle thread as well.
 	 */
 	public KThread() {
+		stats = ThreadStats.create(this);
+
 		if (currentThread != null) {
 			tcb = new TCB();
 		}	    
 		else {
-			readyQueue = ThreadedKernel.scheduler.newThreadQueue(false);
+			readyQueue = ThreadedKernel.scheduler.newReadyQueue();
 			readyQueue.acquire(this);	    
 
 			currentThread = this;
@@ -235,7 +237,8 @@ public class KThread {
 	 * called with interrupts disabled.
 	 */
 	public static void yield() {
-		Lib.debug(dbgThread, "Yielding thread: " + currentThread.toString());
+		if (Lib.test(dbgThread))
+			Lib.debug(dbgThread, "Yielding thread: " + currentThread.toString());
 
 		Lib.assertTrue(currentThread.status == statusRunning);
 
@@ -260,30 +263,78 @@ public class KThread {
 	 * scheduled this thread to be destroyed by the next thread to run.
 	 */
 	public static void sleep() {
-		Lib.debug(dbgThread, "Sleeping thread: " + currentThread.toString());
+		if (Lib.test(dbgThread))
+			Lib.debug(dbgThread, "Sleeping thread: " + currentThread.toString());
 
 		Lib.assertTrue(Machine.interrupt().disabled());
 
-		if (currentThread.status != statusFinished)
+		if (currentThread.status != statusFinished) {
 			currentThread.status = statusBlocked;
+			ThreadedKernel.scheduler.threadBlocked(currentThread);
+		}
 
 		runNextThread();
 	}
 
+	/**
+	 * Same as <tt>sleep()</tt>, but the time until this thread is woken is
+	 * counted in its statistics as time blocked on the specified kind of
+	 * synchronization primitive.
+	 *
+	 * @param	waitType	one of the wait types in
+	 *				<tt>ThreadStats</tt>.
+	 */
+	static void sleep(int waitType) {
+		ThreadStats stats = currentThread.stats;
+		if (stats == null) {
+			sleep();
+			return;
+		}
+
+		long since = Machine.timer().getTime();
+		sleep();
+		stats.blocked(waitType, since);
+	}
+
+	/**
+	 * Called by the timer interrupt handler to make the current thread
+	 * yield. Same as <tt>yield()</tt>, but counted as an involuntary switch.
+	 */
+	static void preempt() {
+		if (currentThread.stats != null)
+			currentThread.stats.preempted();
+
+		KThread.yield();
+	}
+
+	/**
+	 * Test whether any thread other than the current thread is ready to run.
+	 */
+	static boolean hasReadyThreads() {
+		return numReady > 0;
+	}
+
 	/**
 	 * Moves this thread to the ready state and adds this to the scheduler's
 	 * ready queue.
 	 */
 	public void ready() {
-		Lib.debug(dbgThread, "Ready thread: " + toString());
+		if (Lib.test(dbgThread))
+			Lib.debug(dbgThread, "Ready thread: " + toString());
 
 		Lib.assertTrue(Machine.interrupt().disabled());
 		Lib.assertTrue(status != statusReady);
 
 		status = statusReady;
-		if (this != idleThread)
+		if (this != idleThread) {
+			if (stats != null)
+				stats.ready();
 			readyQueue.waitForAccess(this);
 
+			if (numReady++ == 0 && ThreadedKernel.alarm != null)
+				ThreadedKernel.alarm.threadReady();
+		}
+
 		Machine.autoGrader().readyThread(this);
 	}
 
@@ -299,7 +350,10 @@ public class KThread {
 		
 		boolean intStatus = Machine.interrupt().disable(); //Must be atomic
 
-		if (status == statusFinished) { return;}  //You cannot join to a finished thread
+		if (status == statusFinished) { //You cannot join to a finished thread
+			Machine.interrupt().restore(intStatus);
+			return;
+		}
 
 		if (status == statusNew) { this.ready();} //New threads must be placed onto ready queue
 
@@ -338,8 +392,16 @@ public class KThread {
 	 */
 	private static void runNextThread() {
 		KThread nextThread = readyQueue.nextThread();
-		if (nextThread == null)
+		if (nextThread != null) {
+			numReady--;
+		}
+		else {
+			// nothing can happen until the next interrupt
+			if (currentThread == idleThread)
+				Machine.interrupt().idle();
+
 			nextThread = idleThread;
+		}
 
 		nextThread.run();
 	}
@@ -371,8 +433,17 @@ public class KThread {
 
 		currentThread.saveState();
 
-		Lib.debug(dbgThread, "Switching from: " + currentThread.toString()
-				+ " to: " + toString());
+		if (currentThread.stats != null) {
+			currentThread.stats.stopped(this != currentThread &&
+						    currentThread.status != statusFinished,
+						    currentThread.status == statusBlocked);
+			if (currentThread.status == statusFinished)
+				currentThread.stats.finished();
+		}
+
+		if (Lib.test(dbgThread))
+			Lib.debug(dbgThread, "Switching from: " + currentThread.toString()
+					+ " to: " + toString());
 
 		currentThread = this;
 
@@ -386,7 +457,8 @@ public class KThread {
 	 * <tt>statusRunning</tt> and check <tt>toBeDestroyed</tt>.
 	 */
 	protected void restoreState() {
-		Lib.debug(dbgThread, "Running thread: " + currentThread.toString());
+		if (Lib.test(dbgThread))
+			Lib.debug(dbgThread, "Running thread: " + currentThread.toString());
 
 		Lib.assertTrue(Machine.interrupt().disabled());
 		Lib.assertTrue(this == currentThread);
@@ -396,6 +468,9 @@ public class KThread {
 
 		status = statusRunning;
 
+		if (stats != null)
+			stats.started();
+
 		if (toBeDestroyed != null) {
 			toBeDestroyed.tcb.destroy();
 			toBeDestroyed.tcb = null;
@@ -471,7 +546,19 @@ public class KThread {
 	/** Number of times the KThread constructor was called. */
 	private static int numCreated = 0;
 
+	/** The time this thread should be woken by <tt>Alarm</tt>. */
+	long wakeTime;
+	/** The next thread sleeping in the same <tt>Alarm</tt> slot. */
+	KThread nextSleeper = null;
+	/** The next thread on the <tt>RoundRobinScheduler</tt> ready queue. */
+	KThread nextReady = null;
+
+	/** Scheduling statistics, or <tt>null</tt> if they are not kept. */
+	private ThreadStats stats;
+
 	private static ThreadQueue readyQueue = null;
+	/** The number of threads on the ready queue. */
+	private static int numReady = 0;
 	private static KThread currentThread = null;
 	private static KThread toBeDestroyed = null;
 	private static KThread idleThread = null;
@@ -29,41 +29,86 @@ public class Lock {
     /**
      * Atomically acquire this lock. The current thread must not already hold
      * this lock.
+     *
+     * <p>
+     * Only one thread runs at a time, and it can only lose the processor by
+     * sleeping, yielding, or enabling interrupts. So a free lock is taken
+     * without disabling interrupts or telling the wait queue; the holder is
+     * only given to the wait queue, so that it can receive priority, once
+     * another thread has to wait.
      */
     public void acquire() {
 	Lib.assertTrue(!isHeldByCurrentThread());
 
-	boolean intStatus = Machine.interrupt().disable();
 	KThread thread = KThread.currentThread();
 
-	if (lockHolder != null) {
-	    waitQueue.waitForAccess(thread);
-	    KThread.sleep();
-	}
-	else {
-	    waitQueue.acquire(thread);
+	if (lockHolder == null) {
 	    lockHolder = thread;
+	    return;
+	}
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	if (!holderQueued) {
+	    waitQueue.acquire(lockHolder);
+	    holderQueued = true;
 	}
 
+	waitQueue.waitForAccess(thread);
+	KThread.sleep(ThreadStats.lockWait);
+
 	Lib.assertTrue(lockHolder == thread);
 
 	Machine.interrupt().restore(intStatus);
     }
 
     /**
-     * Atomically release this lock, allowing other threads to acquire it.
+     * Atomically release this lock, allowing other threads to acquire it. If
+     * no thread has waited since the lock was acquired, no thread can be
+     * waiting, and the lock is simply marked free.
      */
     public void release() {
 	Lib.assertTrue(isHeldByCurrentThread());
 
+	if (!holderQueued) {
+	    lockHolder = null;
+	    return;
+	}
+
 	boolean intStatus = Machine.interrupt().disable();
 
 	if ((lockHolder = waitQueue.nextThread()) != null)
 	    lockHolder.ready();
+	else
+	    holderQueued = false;
 	
 	Machine.interrupt().restore(intStatus);
     }
 
+    /**
+     * Wake a blocked thread that must reacquire this lock. The current thread
+     * must hold this lock, and interrupts must be disabled.
+     *
+     * <p>
+     * If other threads are already waiting for this lock, the woken thread
+     * could only run to block again behind them, so it is moved straight onto
+     * the wait queue without being woken, as if it had called
+     * <tt>acquire()</tt>, and is woken when <tt>release()</tt> hands it the
+     * lock. Otherwise it is made ready, and calls <tt>acquire()</tt> itself
+     * when it runs, which by then usually takes the lock without waiting.
+     *
+     * @param	thread	the blocked thread that should reacquire this lock.
+     */
+    void wakeToAcquire(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+	Lib.assertTrue(isHeldByCurrentThread());
+
+	if (holderQueued)
+	    waitQueue.waitForAccess(thread);
+	else
+	    thread.ready();
+    }
+
     /**
      * Test if the current thread holds this lock.
      *
@@ -74,6 +119,8 @@ public class Lock {
     }
 
     private KThread lockHolder = null;
+    /** Whether the wait queue knows <tt>lockHolder</tt> holds this lock. */
+    private boolean holderQueued = false;
     private ThreadQueue waitQueue =
 	ThreadedKernel.scheduler.newThreadQueue(true);
 }
@@ -3,10 +3,8 @@ package nachos.threads;
 import nachos.machine.*;
 import nachos.threads.PriorityScheduler.ThreadState;
 
-import java.util.LinkedList;
-import java.util.TreeSet;
-import java.util.HashSet;
-import java.util.Iterator;
+import java.util.ArrayList;
+import java.util.Arrays;
 
 /**
  * A scheduler that chooses threads using a lottery.
@@ -58,73 +56,181 @@ public class LotteryScheduler extends PriorityScheduler {
 	return new LotteryQueue(transferPriority);
     }
     
+    /**
+     * A lottery thread queue. Each waiting thread occupies a slot, and the
+     * tickets held in each slot are kept in a Fenwick tree, so that adding,
+     * removing, or changing a thread's tickets and holding a drawing all take
+     * O(log n) time.
+     */
     protected class LotteryQueue extends PriorityScheduler.PriorityQueue {
     	
-    	private LinkedList<ThreadState> lottery;
-    	private int lotteryCount;
-
 		public LotteryQueue(boolean transferPriority) {
 			super(transferPriority);
-			this.lottery = new LinkedList<ThreadState>();
 			this.lockHolder = null;
-			this.lotteryCount = 0;
 		}
 
 		@Override
 		public void addState(ThreadState thread){
-			lotteryCount += thread.effectivePriority;
-			lottery.push(thread);
+			int slot;
+			if (numFree > 0) {
+				slot = freeSlots[--numFree];
+			}
+			else {
+				if (numSlots == slots.length)
+					grow();
+				slot = numSlots++;
+			}
+
+			slots[slot] = thread;
+			tickets[slot] = thread.effectivePriority;
+			thread.queueIndex = slot;
+			addTickets(slot, tickets[slot]);
+			numWaiting++;
 		}
 		
 		@Override
 		public void removeState(ThreadState thread){
-			if (lottery.remove(thread)){
-				lotteryCount -= thread.effectivePriority;
-				if (lotteryCount < 0){
-					lotteryCount = 0;
-				}
-			}
+			int slot = thread.queueIndex;
+			Lib.assertTrue(slot >= 0 && slot < numSlots && slots[slot] == thread);
+
+			addTickets(slot, -tickets[slot]);
+			slots[slot] = null;
+			tickets[slot] = 0;
+			thread.queueIndex = -1;
+			freeSlots[numFree++] = slot;
+			numWaiting--;
+		}
+
+		@Override
+		protected void updateState(ThreadState thread){
+			int slot = thread.queueIndex;
+			addTickets(slot, thread.effectivePriority - tickets[slot]);
+			tickets[slot] = thread.effectivePriority;
+		}
+		
+		@Override
+		protected int getDonation(){
+			if (!transferPriority)
+				return 0;
+
+			return (int) Math.min(lotteryCount, Integer.MAX_VALUE);
+		}
+
+		/**
+		 * Called whenever the tickets of the waiting threads change. The
+		 * difference from the tickets last donated is passed on to the lock
+		 * holder, which passes its own change on up the chain of holders.
+		 */
+		@Override
+		protected void donationChanged(){
+			long newDonated = transferPriority ? lotteryCount : 0;
+			long delta = newDonated - donated;
+			if (delta == 0)
+				return;
+
+			donated = newDonated;
+			if (lockHolder != null)
+				((LotteryState) lockHolder).addDonation(delta);
 		}
 		
 		@Override
 		public KThread nextThread(){
-			if (! lottery.isEmpty()){
-				ThreadState t = pickNextThread();
-				this.acquire(t.thread);
-				return t.thread;
-			}
-			return null;
+			ThreadState t = pickNextThread();
+			if (t == null)
+				return null;
+
+			this.acquire(t.thread);
+			return t.thread;
 		}
 		
+		/**
+		 * Hold a drawing among all the tickets of the waiting threads, and
+		 * return the winner.
+		 */
 		@Override 
 		public ThreadState pickNextThread(){
+			if (numWaiting == 0)
+				return null;
 
-			Lib.assertTrue(lotteryCount == getTotalTickets());
-			
-			int numTickets = lotteryCount;
-			int rand = (int) (1 + Math.random()*numTickets);
-			for (ThreadState t: lottery){
-				rand = rand - t.effectivePriority;
-				if (rand <= 0){
-					return t;
+			// the winning ticket, numbered from 1
+			long winner = 1 + (long) (Lib.random() * lotteryCount);
+			if (winner > lotteryCount)
+				winner = lotteryCount;
+
+			// find the first slot whose running total reaches the winner
+			int index = 0;
+			for (int step = Integer.highestOneBit(slots.length); step > 0;
+			     step >>= 1) {
+				if (index + step <= slots.length && tree[index+step] < winner) {
+					index += step;
+					winner -= tree[index];
 				}
 			}
-			return null;
+
+			// with no tickets at all, any waiting thread will do
+			if (index >= numSlots || slots[index] == null) {
+				for (index=0; slots[index] == null; index++)
+					;
+			}
+
+			return slots[index];
 		}
-		
-		private int getTotalTickets(){
-			int sum = 0;
-			for(ThreadState t: lottery){
-				sum += t.effectivePriority;
+
+		/** Add <i>delta</i> tickets to a slot. */
+		private void addTickets(int slot, long delta){
+			lotteryCount += delta;
+			for (int i = slot+1; i <= slots.length; i += i & -i)
+				tree[i] += delta;
+		}
+
+		/** Double the number of slots, rebuilding the Fenwick tree. */
+		private void grow(){
+			int capacity = slots.length * 2;
+			slots = Arrays.copyOf(slots, capacity);
+			tickets = Arrays.copyOf(tickets, capacity);
+			freeSlots = Arrays.copyOf(freeSlots, capacity);
+
+			tree = new long[capacity+1];
+			for (int i = 1; i <= capacity; i++) {
+				tree[i] += tickets[i-1];
+				int parent = i + (i & -i);
+				if (parent <= capacity)
+					tree[parent] += tree[i];
+			}
+		}
+
+		/** Return the waiting threads, in slot order. */
+		protected Iterable<ThreadState> waiting(){
+			ArrayList<ThreadState> list = new ArrayList<ThreadState>(numWaiting);
+			for (int i = 0; i < numSlots; i++) {
+				if (slots[i] != null)
+					list.add(slots[i]);
 			}
-			return sum;
+			return list;
 		}
 		
 		@Override
 		public String toString(){
-			return "lott: " + lottery + "holder:" + lockHolder + " count: " + lotteryCount;
+			return "lott: " + waiting() + "holder:" + lockHolder + " count: " + lotteryCount;
 		}
-    	
+
+		/** The waiting threads, indexed by slot. */
+		private ThreadState[] slots = new ThreadState[8];
+		/** The tickets each slot holds in the tree. */
+		private long[] tickets = new long[8];
+		/** The Fenwick tree of tickets per slot, indexed from 1. */
+		private long[] tree = new long[9];
+		/** Slots below <tt>numSlots</tt> that are free. */
+		private int[] freeSlots = new int[8];
+		private int numFree = 0;
+		/** The number of slots that have ever been used. */
+		private int numSlots = 0;
+		/** The number of waiting threads. */
+		private int numWaiting = 0;
+		/** The total number of tickets held by waiting threads. */
+		protected long lotteryCount = 0;
+		/** The tickets this queue currently donates to its lock holder. */
+		protected long donated = 0;
     }
     
     protected class LotteryState extends PriorityScheduler.ThreadState {
@@ -143,43 +249,53 @@ public class LotteryScheduler extends PriorityScheduler {
 			return 0;
 		}
 		
+		/**
+		 * A thread's tickets are its own plus every ticket donated to it,
+		 * which is kept as a running total rather than re-summed.
+		 */
 		@Override
 		protected void updateEffectivePriority(){
-			//Do nothing right now;
-			int sum = this.priority;
-			for (PriorityQueue pq: acquired){
-				if(pq.transferPriority){
-					LotteryQueue l;
-					try {
-						l = (LotteryQueue) pq;
-						for (ThreadState thread: l.lottery){
-							sum += thread.effectivePriority;
-						}
-					} catch (Exception e) {
-						System.out.println("Error in casting pq to lotteryQueue " + e.getMessage());
-					}
-					
-				}
-			}
+			int sum = (int) Math.min(priority + received, Integer.MAX_VALUE);
+			if (sum == effectivePriority)
+				return;
+
+			effectivePriority = sum;
 			
-			if (sum != this.effectivePriority){
-				if (waitingQueue != null){
-					waitingQueue.removeState(this);
-				}
-				
-				this.effectivePriority = sum;
-				
-				if(waitingQueue != null){
-					waitingQueue.addState(this);
-				}
-				
-				if (this.waitingQueue != null && this.waitingQueue.lockHolder != null){
-					this.waitingQueue.lockHolder.updateEffectivePriority();
-				}
+			if (waitingQueue != null){
+				waitingQueue.updateState(this);
+				waitingQueue.donationChanged();
 			}
-			
 		}
-    	
+
+		/**
+		 * Called by a queue this thread holds when the tickets it donates
+		 * change by <i>delta</i>.
+		 */
+		protected void addDonation(long delta){
+			received += delta;
+			updateEffectivePriority();
+		}
+
+		@Override
+		public void acquire(PriorityQueue waitQueue){
+			super.acquire(waitQueue);
+
+			LotteryQueue l = (LotteryQueue) waitQueue;
+			l.donated = l.transferPriority ? l.lotteryCount : 0;
+			addDonation(l.donated);
+		}
+
+		@Override
+		protected void relinquish(PriorityQueue releasing){
+			LotteryQueue l = (LotteryQueue) releasing;
+			received -= l.donated;
+			l.donated = 0;
+
+			super.relinquish(releasing);
+		}
+
+		/** The tickets donated to this thread by the queues it holds. */
+		private long received = 0;
     }
     
     public static void selfTest(){
@@ -230,8 +346,40 @@ public class LotteryScheduler extends PriorityScheduler {
     	ThreadedKernel.scheduler.setPriority(laterIncrease, 80);
     	System.out.println("set " + laterIncrease + " priority to 80, now we have \nl1: " + l1 + "\nl2: " + l2 );
     	
-    	//TODO: Add some caching/counting tests!
+    	//release test
+    	System.out.println("\n Release test");
+    	KThread next = l1.nextThread();
+    	System.out.println("k4 released l1 to " + next + ", now we have \nl1: " + l1 + "\nl2: " + l2 );
+    	Lib.assertTrue(ThreadedKernel.scheduler.getEffectivePriority(k4) == 100);
+    	Lib.assertTrue(ThreadedKernel.scheduler.getEffectivePriority(a1) == 101);
     	
+    	//fairness test
+    	System.out.println("\n Fairness test");
+    	ThreadQueue l3 = ThreadedKernel.scheduler.newThreadQueue(false);
+    	KThread[] f = new KThread[4];
+    	int[] wins = new int[f.length];
+    	for (int i=0; i<f.length; i++){
+    		f[i] = new KThread().setName("f" + i);
+    		ThreadedKernel.scheduler.setPriority(f[i], i+1);
+    		l3.waitForAccess(f[i]);
+    	}
+    	l3.acquire(new KThread().setName("f holder"));
+    	
+    	int draws = 10000;
+    	for (int n=0; n<draws; n++){
+    		KThread winner = l3.nextThread();
+    		for (int i=0; i<f.length; i++){
+    			if (winner == f[i])
+    				wins[i]++;
+    		}
+    		l3.waitForAccess(winner);
+    	}
+    	for (int i=0; i<f.length; i++){
+    		System.out.println(f[i] + " (" + (i+1) + " tickets) won " + wins[i] + " of " + draws
+    				+ ", expected " + draws*(i+1)/10);
+    		Lib.assertTrue(Math.abs(wins[i] - draws*(i+1)/10) < draws/20);
+    	}
     	
+    	Machine.interrupt().restore(restore);
     }
 }
@@ -0,0 +1,446 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.LinkedList;
+import java.util.Iterator;
+
+/**
+ * A multi-level feedback queue scheduler. Every thread is at one of several
+ * levels, and a queue always gives access to a thread at the highest level
+ * (level 0) that has a waiting thread, in FIFO order within a level.
+ *
+ * <p>
+ * A thread's level is decided by how it uses the processor:
+ *
+ * <ul>
+ * <li>Each level has a time slice, starting at
+ * <tt>MLFQScheduler.quantum</tt> ticks at level 0 and doubling at each level
+ * below. The timer only preempts a thread once it has used its time slice,
+ * or when a thread at a higher level is ready to run.
+ * <li>A thread that uses its whole time slice moves down a level. The time
+ * it runs is counted whether it yields, is preempted, or blocks, so a thread
+ * cannot keep its level by blocking just before its time slice runs out.
+ * <li>A thread that blocks, in a <tt>Semaphore</tt>, <tt>Lock</tt>,
+ * <tt>Condition</tt>, or anything built on them such as
+ * <tt>SynchConsole</tt>, <tt>PostOffice.receive()</tt>, or
+ * <tt>Alarm.waitUntil()</tt>, moves up a level when it is woken, if it ran
+ * for less than half the level 0 time slice between being chosen to run and
+ * blocking.
+ * <li>Every <tt>MLFQScheduler.boostInterval</tt> ticks, every thread is moved
+ * back to level 0, so that threads that have moved down do not starve.
+ * </ul>
+ *
+ * <p>
+ * The number of levels is set by <tt>MLFQScheduler.levels</tt>. Priority is
+ * not transferred.
+ */
+public class MLFQScheduler extends Scheduler {
+    /**
+     * Allocate a new MLFQ scheduler.
+     */
+    public MLFQScheduler() {
+	numLevels = Config.getInteger("MLFQScheduler.levels", 4);
+	quantum = Config.getInteger("MLFQScheduler.quantum", 500);
+	boostInterval = Config.getInteger("MLFQScheduler.boostInterval",
+					  20000);
+
+	Lib.assertTrue(numLevels > 0 && quantum > 0 && boostInterval > 0);
+
+	nextBoost = boostInterval;
+    }
+
+    /**
+     * Allocate a new MLFQ thread queue.
+     *
+     * @param	transferPriority	ignored. MLFQ schedulers do not
+     *					transfer priority.
+     * @return	a new MLFQ thread queue.
+     */
+    public ThreadQueue newThreadQueue(boolean transferPriority) {
+	return new MLFQQueue();
+    }
+
+    /**
+     * Allocate the ready queue. Threads are only charged for the time they
+     * run once they are chosen from this queue.
+     *
+     * @return	a new MLFQ ready queue.
+     */
+    public ThreadQueue newReadyQueue() {
+	readyQueue = new MLFQQueue();
+	return readyQueue;
+    }
+
+    /**
+     * Get the level of the specified thread; 0 is the highest.
+     *
+     * @param	thread	the thread to get the level of.
+     * @return	the thread's level.
+     */
+    public int getPriority(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+	return getThreadState(thread).getLevel();
+    }
+
+    public int getEffectivePriority(KThread thread) {
+	return getPriority(thread);
+    }
+
+    /**
+     * Preempt the current thread if it has used its time slice, if a thread
+     * at a higher level is ready, or if it is time to move every thread back
+     * to level 0.
+     */
+    public boolean shouldPreempt() {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	long time = Machine.timer().getTime();
+	if (readyQueue == null || time >= nextBoost)
+	    return true;
+
+	ThreadState current = getThreadState(KThread.currentThread());
+	int level = current.getLevel();
+
+	return current.sliceUsed + (time - current.dispatched) >= slice(level)
+	    || readyQueue.highestLevel() < level;
+    }
+
+    /**
+     * Return the time left in the current thread's time slice, but no more
+     * than the level 0 time slice, so that a thread moving up to a higher
+     * level does not wait long to be noticed.
+     */
+    public long timeSliceRemaining() {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	ThreadState current = getThreadState(KThread.currentThread());
+	long used = current.sliceUsed
+	    + (Machine.timer().getTime() - current.dispatched);
+
+	return Math.max(Math.min(slice(current.getLevel()) - used, quantum), 1);
+    }
+
+    /**
+     * Charge the current thread, which is about to block, for the time it
+     * has run.
+     */
+    public void threadBlocked(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	ThreadState state = getThreadState(thread);
+	long time = Machine.timer().getTime();
+
+	state.burst = time - state.runStart;
+	state.charge(time);
+    }
+
+    /**
+     * Return the time slice of the specified level.
+     */
+    private long slice(int level) {
+	return (long) quantum << level;
+    }
+
+    /**
+     * Return the scheduling state of the specified thread.
+     *
+     * @param	thread	the thread whose scheduling state to return.
+     * @return	the scheduling state of the specified thread.
+     */
+    protected ThreadState getThreadState(KThread thread) {
+	if (thread.schedulingState == null)
+	    thread.schedulingState = new ThreadState();
+
+	return (ThreadState) thread.schedulingState;
+    }
+
+    /**
+     * Move every thread back to level 0 if the boost interval has passed.
+     * Waiting threads in the ready queue are moved at once; every other
+     * thread is moved the next time it waits on a queue.
+     */
+    private void checkBoost(long time) {
+	if (time < nextBoost)
+	    return;
+
+	boostEpoch++;
+	nextBoost = time + boostInterval;
+
+	Lib.debug(dbgMLFQ, "Boosting all threads to level 0 at " + time);
+
+	if (readyQueue != null)
+	    readyQueue.boost();
+    }
+
+    /**
+     * Test that a thread that runs for more than half the level 0 time slice
+     * and then blocks on a lock is not moved up when it is woken. Only runs
+     * when this is the scheduler in use.
+     */
+    public static void selfTest() {
+	if (!(ThreadedKernel.scheduler instanceof MLFQScheduler))
+	    return;
+
+	System.out.println("Testing MLFQ");
+	final MLFQScheduler scheduler = (MLFQScheduler) ThreadedKernel.scheduler;
+	if (scheduler.boostInterval < 4*scheduler.quantum) {
+	    System.out.println("boost interval too short, skipping");
+	    return;
+	}
+	final Lock lock = new Lock();
+	final Semaphore spun = new Semaphore(0);
+	final int[] levels = new int[2];
+
+	// a boost while the thread runs would move it up anyway, so try again
+	int epoch;
+	do {
+	    epoch = scheduler.boostEpoch;
+	    lock.acquire();
+
+	    KThread spinner = new KThread(new Runnable() {
+		public void run() {
+		    KThread self = KThread.currentThread();
+
+		    // use up the level 0 time slice
+		    while (getLevel(self) == 0)
+			spin(1);
+		    levels[0] = getLevel(self);
+
+		    spin(scheduler.quantum/2 + 1);
+
+		    // keep the timer from preempting us before we block
+		    boolean intStatus = Machine.interrupt().disable();
+		    spun.V();
+		    lock.acquire();
+		    levels[1] = scheduler.getPriority(self);
+		    Machine.interrupt().restore(intStatus);
+
+		    lock.release();
+		}
+	    }).setName("mlfq spinner");
+
+	    spinner.fork();
+	    spun.P();
+	    lock.release();
+	    spinner.join();
+	} while (scheduler.boostEpoch != epoch);
+
+	System.out.println("spinner level before blocking " + levels[0]
+			   + ", after waking " + levels[1]);
+	Lib.assertTrue(levels[0] > 0 && levels[1] == levels[0]);
+    }
+
+    private static int getLevel(KThread thread) {
+	boolean intStatus = Machine.interrupt().disable();
+	int level = ThreadedKernel.scheduler.getPriority(thread);
+	Machine.interrupt().restore(intStatus);
+	return level;
+    }
+
+    /**
+     * Run for at least the specified number of ticks without blocking.
+     */
+    private static void spin(long ticks) {
+	long end = Machine.timer().getTime() + ticks;
+	while (Machine.timer().getTime() < end) {
+	    Machine.interrupt().disable();
+	    Machine.interrupt().enable();
+	}
+    }
+
+    private class MLFQQueue extends ThreadQueue {
+	@SuppressWarnings("unchecked")
+	MLFQQueue() {
+	    levels = (LinkedList<KThread>[]) new LinkedList<?>[numLevels];
+	    for (int i=0; i<numLevels; i++)
+		levels[i] = new LinkedList<KThread>();
+	}
+
+	/**
+	 * Add a thread to the end of its level. If the thread is waiting on
+	 * its own behalf, it is charged for the time it has run. Otherwise, if
+	 * this is the ready queue, it is being woken up after blocking, and may
+	 * move up a level. A blocked thread moved onto another queue, such as
+	 * a lock's, is only woken later, so it moves nowhere yet.
+	 *
+	 * @param	thread	the thread to add.
+	 */
+	public void waitForAccess(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    ThreadState state = getThreadState(thread);
+	    if (state.epoch != boostEpoch) {
+		state.epoch = boostEpoch;
+		state.level = 0;
+		state.sliceUsed = 0;
+	    }
+
+	    if (thread == KThread.currentThread())
+		state.charge(Machine.timer().getTime());
+	    else if (this == readyQueue)
+		state.wake();
+
+	    levels[state.level].add(thread);
+	    size++;
+	}
+
+	/**
+	 * Remove the first thread at the highest level that has a waiting
+	 * thread.
+	 *
+	 * @return	the next thread, or <tt>null</tt> if the queue is empty.
+	 */
+	public KThread nextThread() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    long time = Machine.timer().getTime();
+	    if (this == readyQueue)
+		checkBoost(time);
+
+	    int level = highestLevel();
+	    if (level == numLevels)
+		return null;
+
+	    KThread thread = levels[level].removeFirst();
+	    size--;
+
+	    if (this == readyQueue) {
+		ThreadState state = getThreadState(thread);
+		state.dispatched = time;
+		state.runStart = time;
+	    }
+
+	    return thread;
+	}
+
+	/**
+	 * The specified thread has received exclusive access, without using
+	 * <tt>waitForAccess()</tt> or <tt>nextThread()</tt>. Priority is not
+	 * transferred, so there is nothing to do.
+	 */
+	public void acquire(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+	}
+
+	/**
+	 * Print out the contents of the queue, highest level first.
+	 */
+	public void print() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    for (int i=0; i<numLevels; i++) {
+		for (Iterator<KThread> j=levels[i].iterator(); j.hasNext(); )
+		    System.out.print(j.next() + "(" + i + ") ");
+	    }
+	}
+
+	/**
+	 * Return the highest level that has a waiting thread, or
+	 * <tt>numLevels</tt> if there is none.
+	 */
+	int highestLevel() {
+	    int level = 0;
+	    if (size > 0) {
+		while (levels[level].isEmpty())
+		    level++;
+		return level;
+	    }
+	    return numLevels;
+	}
+
+	/**
+	 * Move every waiting thread to level 0, keeping the order of the
+	 * levels.
+	 */
+	void boost() {
+	    for (int i=0; i<numLevels; i++) {
+		for (Iterator<KThread> j=levels[i].iterator(); j.hasNext(); ) {
+		    ThreadState state = getThreadState(j.next());
+		    state.epoch = boostEpoch;
+		    state.level = 0;
+		    state.sliceUsed = 0;
+		}
+		if (i > 0) {
+		    levels[0].addAll(levels[i]);
+		    levels[i].clear();
+		}
+	    }
+	}
+
+	/** The waiting threads at each level. */
+	private LinkedList<KThread>[] levels;
+	/** The number of waiting threads. */
+	private int size = 0;
+    }
+
+    /**
+     * The scheduling state of a thread.
+     */
+    protected class ThreadState {
+	/**
+	 * Return the level of the associated thread, taking any boost that
+	 * has not yet been applied into account.
+	 */
+	int getLevel() {
+	    return (epoch == boostEpoch) ? level : 0;
+	}
+
+	/**
+	 * Charge the associated thread for the time it has run since it was
+	 * last charged, moving it down a level once it has used its whole
+	 * time slice.
+	 */
+	void charge(long time) {
+	    sliceUsed += time - dispatched;
+	    dispatched = time;
+
+	    if (sliceUsed >= slice(level)) {
+		if (level < numLevels-1)
+		    level++;
+		sliceUsed = 0;
+	    }
+	}
+
+	/**
+	 * Called when the associated thread is woken up after blocking. Moves
+	 * it up a level, unless it ran for long before blocking.
+	 */
+	void wake() {
+	    if (level > 0 && burst < quantum/2) {
+		level--;
+		sliceUsed = 0;
+	    }
+	}
+
+	/** The level of the associated thread, if <tt>epoch</tt> is current. */
+	private int level = 0;
+	/** The time the associated thread has run in its current time slice. */
+	private long sliceUsed = 0;
+	/** The time up to which the associated thread has been charged. */
+	private long dispatched = 0;
+	/**
+	 * The time the associated thread was last chosen to run. Unlike
+	 * <tt>dispatched</tt>, this is not moved by <tt>charge()</tt>, since a
+	 * thread is charged when it waits for a lock, just before it blocks.
+	 */
+	private long runStart = 0;
+	/** How long the associated thread ran before it last blocked. */
+	private long burst = 0;
+	/** The value of <tt>boostEpoch</tt> when <tt>level</tt> was set. */
+	private int epoch = 0;
+    }
+
+    private int numLevels;
+    private int quantum;
+    private int boostInterval;
+
+    /** The time of the next boost to level 0. */
+    private long nextBoost;
+    /** The number of boosts so far. */
+    private int boostEpoch = 0;
+    /** The ready queue, once it has been created. */
+    private MLFQQueue readyQueue = null;
+
+    private static final char dbgMLFQ = 'f';
+}
@@ -2,11 +2,7 @@ package nachos.threads;
 
 import nachos.machine.*;
 
-import java.util.TreeSet;
-import java.util.HashSet;
-import java.util.Iterator;
-
-import java.util.Comparator;
+import java.util.Arrays;
 
 /**
  * A scheduler that chooses threads based on their priorities.
@@ -132,12 +128,16 @@ public class PriorityScheduler extends Scheduler {
     }
 
     /**
-     * A <tt>ThreadQueue</tt> that sorts threads by priority.
+     * A <tt>ThreadQueue</tt> that sorts threads by priority. The waiting
+     * threads are kept in an indexed binary heap, ordered by effective
+     * priority and then by the order in which they started waiting, so a
+     * thread whose effective priority changes can be moved in O(log n).
      */
     protected class PriorityQueue extends ThreadQueue {
 	
 		PriorityQueue(boolean transferPriority) {
 		    this.transferPriority = transferPriority;
+		    this.donation = priorityMinimum;
 		}
 
 		public void waitForAccess(KThread thread) {
@@ -152,14 +152,13 @@ public class PriorityScheduler extends Scheduler {
 
 		public KThread nextThread() {
 		    Lib.assertTrue(Machine.interrupt().disabled());
-		    if(!orderedThreads.isEmpty()){
-		    	//System.out.println("Asking for nexthread, ordered threads is " + orderedThreads);
-		    	//System.out.println("Top is " + orderedThreads.peek());
-			    KThread nextThread = orderedThreads.poll().thread;
-			    acquire(nextThread);
-			    return this.lockHolder.thread; //this assumes that its worked
-		    } 
-		    return null;
+		    ThreadState next = pickNextThread();
+		    if (next == null)
+		    	return null;
+
+		    // acquiring takes the thread off this queue
+		    next.acquire(this);
+		    return next.thread;
 		}
 
 		/**
@@ -170,7 +169,7 @@ public class PriorityScheduler extends Scheduler {
 		 *		return.
 		 */
 		protected ThreadState pickNextThread() {
-			return orderedThreads.peek();
+			return (size == 0) ? null : waiters[0];
 		}
 		
 		public void print() {
@@ -179,39 +178,138 @@ public class PriorityScheduler extends Scheduler {
 		}
 
 		/**
-		 * <tt>true</tt> if this queue should transfer priority from waiting
-		 * threads to the owning thread.
+		 * Add a thread to the threads waiting on this queue.
 		 */
-		public boolean transferPriority;
-		private java.util.PriorityQueue<ThreadState> orderedThreads = new java.util.PriorityQueue<ThreadState>(10, new ThreadComparator());
-		protected ThreadState lockHolder = null;
+		protected void addState(ThreadState thread) {
+			if (size == waiters.length)
+				waiters = Arrays.copyOf(waiters, size*2);
+
+			waiters[size] = thread;
+			thread.queueIndex = size++;
+			siftUp(thread.queueIndex);
+		}
 		
-		protected class ThreadComparator implements Comparator<ThreadState> {
-			@Override
-			public int compare(ThreadState t1, ThreadState t2) {
-				if (t1.getEffectivePriority() > t2.getEffectivePriority()) {
-					return -1;
-				} else if (t1.getEffectivePriority() < t2.getEffectivePriority()) {
-					return 1;
-				} else {
-					if (t1.getWaitingTime() < t2.getWaitingTime()) {
-						return -1;
-					} else if(t1.getWaitingTime() > t2.getWaitingTime()) {
-						return 1;
-					} else {
-						return 0;
-					}
-				}
+		/**
+		 * Remove a thread from the threads waiting on this queue.
+		 */
+		protected void removeState(ThreadState thread) {
+			int i = thread.queueIndex;
+			Lib.assertTrue(i >= 0 && i < size && waiters[i] == thread);
+
+			thread.queueIndex = -1;
+			ThreadState last = waiters[--size];
+			waiters[size] = null;
+
+			if (i < size) {
+				waiters[i] = last;
+				last.queueIndex = i;
+				if (!siftUp(i))
+					siftDown(i);
 			}
 		}
 
-		public void addState(ThreadState thread) {
-			this.orderedThreads.add(thread);
+		/**
+		 * Called when the effective priority of a waiting thread has
+		 * changed, to restore the order of the waiting threads.
+		 */
+		protected void updateState(ThreadState thread) {
+			if (!siftUp(thread.queueIndex))
+				siftDown(thread.queueIndex);
 		}
-		
-		public void removeState(ThreadState thread) {
-			this.orderedThreads.remove(thread);
+
+		/**
+		 * Return the priority this queue donates to its lock holder: the
+		 * highest effective priority of any waiting thread, if this queue
+		 * transfers priority.
+		 */
+		protected int getDonation() {
+			if (!transferPriority || size == 0)
+				return priorityMinimum;
+
+			return waiters[0].getEffectivePriority();
+		}
+
+		/**
+		 * Called whenever the waiting threads change. If the donation to the
+		 * lock holder changes as a result, the lock holder is updated, which
+		 * may in turn propagate further up the chain of lock holders.
+		 */
+		protected void donationChanged() {
+			int newDonation = getDonation();
+			if (newDonation == donation)
+				return;
+
+			donation = newDonation;
+			if (lockHolder != null)
+				lockHolder.donationChanged(this);
 		}
+
+		/** Tests whether waiter <i>a</i> should be dequeued before <i>b</i>. */
+		private boolean before(ThreadState a, ThreadState b) {
+			if (a.getEffectivePriority() != b.getEffectivePriority())
+				return a.getEffectivePriority() > b.getEffectivePriority();
+
+			return a.getWaitingTime() < b.getWaitingTime();
+		}
+
+		/** Move the waiter at index i up; return true if it moved. */
+		private boolean siftUp(int i) {
+			ThreadState thread = waiters[i];
+			int start = i;
+
+			while (i > 0) {
+				int parent = (i-1) / 2;
+				if (!before(thread, waiters[parent]))
+					break;
+				waiters[i] = waiters[parent];
+				waiters[i].queueIndex = i;
+				i = parent;
+			}
+
+			waiters[i] = thread;
+			thread.queueIndex = i;
+			return i != start;
+		}
+
+		/** Move the waiter at index i down. */
+		private void siftDown(int i) {
+			ThreadState thread = waiters[i];
+
+			while (true) {
+				int child = 2*i + 1;
+				if (child >= size)
+					break;
+				if (child+1 < size && before(waiters[child+1], waiters[child]))
+					child++;
+				if (!before(waiters[child], thread))
+					break;
+				waiters[i] = waiters[child];
+				waiters[i].queueIndex = i;
+				i = child;
+			}
+
+			waiters[i] = thread;
+			thread.queueIndex = i;
+		}
+
+		/**
+		 * <tt>true</tt> if this queue should transfer priority from waiting
+		 * threads to the owning thread.
+		 */
+		public boolean transferPriority;
+		protected ThreadState lockHolder = null;
+
+		/** The waiting threads, as a binary heap. */
+		private ThreadState[] waiters = new ThreadState[4];
+		/** The number of waiting threads. */
+		protected int size = 0;
+		/** The donation last reported to the lock holder. */
+		protected int donation;
+		/**
+		 * The index of this queue in its lock holder's heap of acquired
+		 * queues, or -1.
+		 */
+		private int holderIndex = -1;
 	}
 
     /**
@@ -219,6 +317,11 @@ public class PriorityScheduler extends Scheduler {
      * priority, its effective priority, any objects it owns, and the queue
      * it's waiting for, if any.
      *
+     * <p>
+     * The priority-transferring queues this thread holds are kept in an
+     * indexed binary heap ordered by the priority they donate, so the
+     * effective priority is always available from the top of the heap.
+     *
      * @see	nachos.threads.KThread#schedulingState
      */
     protected class ThreadState {
@@ -261,46 +364,40 @@ public class PriorityScheduler extends Scheduler {
 		    return effectivePriority;
 		}
 		
+		/**
+		 * Recompute the effective priority from this thread's own priority
+		 * and the highest donation it receives. If it changed, reposition
+		 * this thread in the queue it waits on, and let that queue pass the
+		 * change on to its lock holder. Propagation stops as soon as an
+		 * effective priority does not change.
+		 */
 		protected void updateEffectivePriority() {
-			
-			//System.out.println("Updating priority for "+ this);
-			int tempPriority =  0; //start at an incredibly low number
-			
-			for (PriorityQueue resource: acquired){
-				if (resource.transferPriority && resource.orderedThreads.peek() != null){
-					//System.out.println("orderedthreads is " + resource.orderedThreads);
-					int resourceMax = resource.orderedThreads.peek().getEffectivePriority();
-					if (tempPriority < resourceMax) {
-						tempPriority = resourceMax;
-					}
-				}
+			int newPriority = priority;
+			if (numAcquired > 0 && acquired[0].donation > newPriority)
+				newPriority = acquired[0].donation;
+
+			if (newPriority == effectivePriority)
+				return;
+
+			effectivePriority = newPriority;
+
+			if (waitingQueue != null) {
+				waitingQueue.updateState(this);
+				waitingQueue.donationChanged();
 			}
-			
-			if (this.effectivePriority != tempPriority){ 
-				
-				if (this.waitingQueue!= null){
- 					waitingQueue.removeState(this);
-				}
-				
-				//if the priority is changed, it could be lowered, but never lower than the priority itself
-				if (tempPriority < this.priority) {
-					this.effectivePriority = this.priority; //so if tempPriority is 0, this is the case that gets called
-				} else {
-					this.effectivePriority = tempPriority; //else its gone up!
-				}
-				
- 				if(this.waitingQueue != null) {
- 					waitingQueue.addState(this);
- 				}
-
-				//if the queue im waiting on exists, propogate iff donation is on!
-				if(waitingQueue != null && waitingQueue.lockHolder != null && waitingQueue.lockHolder != this)
-				{
-					this.waitingQueue.lockHolder.updateEffectivePriority();
-				}
-			}  
 		}
-		
+
+		/**
+		 * Called by a queue this thread holds when its donation changes.
+		 */
+		protected void donationChanged(PriorityQueue queue) {
+			if (queue.holderIndex >= 0) {
+				if (!siftUp(queue.holderIndex))
+					siftDown(queue.holderIndex);
+			}
+
+			updateEffectivePriority();
+		}
 
 		/**
 		 * Set the priority of the associated thread to the specified value.
@@ -313,23 +410,7 @@ public class PriorityScheduler extends Scheduler {
 
 		    this.priority = priority;
 
-		    if (this.waitingQueue != null){
-				waitingQueue.removeState(this);
-		    }
-			
-		    if (this.priority > this.effectivePriority) {
-		    	this.effectivePriority = this.priority;
-		    } else {
-		    	this.updateEffectivePriority(); //our priority may be the only thing holding effective up
-		    }
-		    
-			if(this.waitingQueue != null) {
-				waitingQueue.addState(this);
-			}
-		    
-		    if(this.waitingQueue != null && this.waitingQueue.lockHolder != null) {
-		    	this.waitingQueue.lockHolder.updateEffectivePriority();
-		    }
+		    updateEffectivePriority();
 		}
 
 		
@@ -346,14 +427,13 @@ public class PriorityScheduler extends Scheduler {
 		 * @see	nachos.threads.ThreadQueue#waitForAccess
 		 */
 		public void waitForAccess(PriorityQueue waitQueue) {
+		    Lib.assertTrue(this.waitingQueue == null);
+
 		    this.waitingQueue = waitQueue;
-		    this.waitingTime = System.currentTimeMillis();
+		    this.waitingTime = numWaits++;
 		  
 		    waitQueue.addState(this);
-		    
-		    if (this.waitingQueue != null && this.waitingQueue.lockHolder != null){
-		    	this.waitingQueue.lockHolder.updateEffectivePriority();
-		    }
+		    waitQueue.donationChanged();
 		}
 		
 		
@@ -374,10 +454,22 @@ public class PriorityScheduler extends Scheduler {
 		    }
 		    if (this.waitingQueue == waitQueue){
 		    	this.waitingQueue = null;
+		    	waitQueue.removeState(this); //if i was on the wait queue, remove me
 		    }
-		    waitQueue.removeState(this); //if i was on the wait queue, remove me
+
 		    waitQueue.lockHolder = this; //and set me to lockholder
-		    this.acquired.add(waitQueue);
+		    waitQueue.donation = waitQueue.getDonation();
+
+		    // only queues that transfer priority can affect us
+		    if (waitQueue.transferPriority) {
+		    	if (numAcquired == acquired.length)
+		    		acquired = Arrays.copyOf(acquired, numAcquired*2);
+
+		    	acquired[numAcquired] = waitQueue;
+		    	waitQueue.holderIndex = numAcquired++;
+		    	siftUp(waitQueue.holderIndex);
+		    }
+
 		    this.updateEffectivePriority();
 		}
 		/**
@@ -385,12 +477,64 @@ public class PriorityScheduler extends Scheduler {
 		 * @param waitQueue will leave the function with no lockholder
 		 */
 		protected void relinquish(PriorityQueue releasing){
-			this.effectivePriority = this.priority; //not sure about this tbh
-			this.acquired.remove(releasing);
-			releasing.lockHolder = null; //maybe this doesnt need to be there
-			if (this.waitingQueue!= null && this.waitingQueue.lockHolder != null){
-				this.waitingQueue.lockHolder.updateEffectivePriority();
+			releasing.lockHolder = null;
+
+			int i = releasing.holderIndex;
+			if (i >= 0) {
+				releasing.holderIndex = -1;
+				PriorityQueue last = acquired[--numAcquired];
+				acquired[numAcquired] = null;
+
+				if (i < numAcquired) {
+					acquired[i] = last;
+					last.holderIndex = i;
+					if (!siftUp(i))
+						siftDown(i);
+				}
 			}
+
+			this.updateEffectivePriority();
+		}
+
+		/** Move the acquired queue at index i up; return true if it moved. */
+		private boolean siftUp(int i) {
+			PriorityQueue queue = acquired[i];
+			int start = i;
+
+			while (i > 0) {
+				int parent = (i-1) / 2;
+				if (acquired[parent].donation >= queue.donation)
+					break;
+				acquired[i] = acquired[parent];
+				acquired[i].holderIndex = i;
+				i = parent;
+			}
+
+			acquired[i] = queue;
+			queue.holderIndex = i;
+			return i != start;
+		}
+
+		/** Move the acquired queue at index i down. */
+		private void siftDown(int i) {
+			PriorityQueue queue = acquired[i];
+
+			while (true) {
+				int child = 2*i + 1;
+				if (child >= numAcquired)
+					break;
+				if (child+1 < numAcquired &&
+				    acquired[child+1].donation > acquired[child].donation)
+					child++;
+				if (acquired[child].donation <= queue.donation)
+					break;
+				acquired[i] = acquired[child];
+				acquired[i].holderIndex = i;
+				i = child;
+			}
+
+			acquired[i] = queue;
+			queue.holderIndex = i;
 		}
 
 		public String toString(){
@@ -405,11 +549,23 @@ public class PriorityScheduler extends Scheduler {
 		
 		protected int effectivePriority;
 		protected PriorityQueue waitingQueue = null;
-		protected HashSet<PriorityQueue> acquired = new HashSet<PriorityQueue>();
+		/**
+		 * The priority-transferring queues held by this thread, as a binary
+		 * heap ordered by donation.
+		 */
+		protected PriorityQueue[] acquired = new PriorityQueue[4];
+		/** The number of queues in <tt>acquired</tt>. */
+		protected int numAcquired = 0;
+		/** The index of this thread in its waiting queue's heap, or -1. */
+		protected int queueIndex = -1;
 		
 		private long waitingTime = 0;
 		
     }
-    
 
+    /**
+     * The number of times any thread has started waiting on a queue, used to
+     * order threads of equal priority by how long they have waited.
+     */
+    private static long numWaits = 0;
 }
@@ -0,0 +1,347 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.ArrayList;
+
+/**
+ * A <tt>ReadWriteLock</tt> lets any number of threads read a shared structure
+ * at once, or one thread write it:
+ *
+ * <ul>
+ * <li><tt>acquireRead()</tt>: wait until no thread is writing and no thread
+ * is waiting to write, then start reading.
+ * <li><tt>releaseRead()</tt>: stop reading.
+ * <li><tt>acquireWrite()</tt>: wait until no thread is reading or writing,
+ * then start writing.
+ * <li><tt>releaseWrite()</tt>: stop writing, handing the lock to the next
+ * waiting writer, or else to every waiting reader.
+ * </ul>
+ *
+ * <p>
+ * Writers are preferred: once a writer is waiting, new readers wait behind
+ * it, so a steady stream of readers cannot starve writers.
+ *
+ * <p>
+ * Waiting readers and writers wait on queues that transfer priority, like a
+ * <tt>Lock</tt>. Both queues donate to one thread holding the lock: the
+ * writer, or else the thread that has been reading longest. Whenever that
+ * thread changes, both queues are told, so waiting threads never donate to a
+ * thread that no longer holds the lock.
+ */
+public class ReadWriteLock {
+    /**
+     * Allocate a new read-write lock. No thread is reading or writing.
+     */
+    public ReadWriteLock() {
+    }
+
+    /**
+     * Start reading, waiting first for any thread that is writing or waiting
+     * to write. The current thread must not already be reading or writing.
+     */
+    public void acquireRead() {
+	boolean intStatus = Machine.interrupt().disable();
+	KThread thread = KThread.currentThread();
+
+	Lib.assertTrue(writer != thread);
+
+	if (writer == null && numWaitingWriters == 0) {
+	    readers.add(thread);
+	}
+	else {
+	    if (numWaitingReaders++ == 0)
+		readQueue.acquire(holder());
+
+	    readQueue.waitForAccess(thread);
+	    KThread.sleep(ThreadStats.lockWait);
+
+	    Lib.assertTrue(readers.contains(thread));
+	}
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Stop reading. The current thread must be reading.
+     */
+    public void releaseRead() {
+	boolean intStatus = Machine.interrupt().disable();
+	KThread thread = KThread.currentThread();
+
+	boolean wasHolder = (!readers.isEmpty() && readers.get(0) == thread);
+	Lib.assertTrue(readers.remove(thread));
+
+	if (readers.isEmpty()) {
+	    if (numWaitingWriters > 0)
+		handToWriter();
+	}
+	else if (wasHolder) {
+	    holderChanged();
+	}
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Start writing, waiting first until no thread is reading or writing. The
+     * current thread must not already be reading or writing.
+     */
+    public void acquireWrite() {
+	boolean intStatus = Machine.interrupt().disable();
+	KThread thread = KThread.currentThread();
+
+	Lib.assertTrue(writer != thread);
+
+	if (writer == null && readers.isEmpty()) {
+	    writer = thread;
+	}
+	else {
+	    if (numWaitingWriters++ == 0)
+		writeQueue.acquire(holder());
+
+	    writeQueue.waitForAccess(thread);
+	    KThread.sleep(ThreadStats.lockWait);
+
+	    Lib.assertTrue(writer == thread);
+	}
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Stop writing. The current thread must be writing.
+     */
+    public void releaseWrite() {
+	Lib.assertTrue(isWriteHeldByCurrentThread());
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	writer = null;
+
+	if (numWaitingWriters > 0) {
+	    handToWriter();
+	}
+	else {
+	    while (numWaitingReaders > 0) {
+		KThread thread = readQueue.nextThread();
+		numWaitingReaders--;
+		readers.add(thread);
+		thread.ready();
+	    }
+	}
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Test if the current thread is writing.
+     *
+     * @return	true if the current thread holds this lock for writing.
+     */
+    public boolean isWriteHeldByCurrentThread() {
+	return (writer == KThread.currentThread());
+    }
+
+    /**
+     * Make the first waiting writer the writer, and wake it up.
+     */
+    private void handToWriter() {
+	writer = writeQueue.nextThread();
+	numWaitingWriters--;
+
+	// the write queue already donates to the thread it chose
+	if (numWaitingReaders > 0)
+	    readQueue.acquire(writer);
+
+	writer.ready();
+    }
+
+    /**
+     * Make the queues with waiting threads donate to the current
+     * <tt>holder()</tt>.
+     */
+    private void holderChanged() {
+	if (numWaitingReaders > 0)
+	    readQueue.acquire(holder());
+	if (numWaitingWriters > 0)
+	    writeQueue.acquire(holder());
+    }
+
+    /**
+     * Return the thread that waiting threads donate priority to: the writer,
+     * or else the first reader.
+     */
+    private KThread holder() {
+	return (writer != null) ? writer : readers.get(0);
+    }
+
+    private static class Reader implements Runnable {
+	Reader(ReadWriteLock lock, int id) {
+	    this.lock = lock;
+	    this.id = id;
+	}
+
+	public void run() {
+	    lock.acquireRead();
+	    numReading++;
+	    maxReading = Math.max(maxReading, numReading);
+	    log += "r" + id;
+	    KThread.yield();
+	    numReading--;
+	    lock.releaseRead();
+	}
+
+	private ReadWriteLock lock;
+	private int id;
+    }
+
+    private static class Writer implements Runnable {
+	Writer(ReadWriteLock lock, int id) {
+	    this.lock = lock;
+	    this.id = id;
+	}
+
+	public void run() {
+	    lock.acquireWrite();
+	    Lib.assertTrue(numReading == 0);
+	    log += "w" + id;
+	    KThread.yield();
+	    lock.releaseWrite();
+	}
+
+	private ReadWriteLock lock;
+	private int id;
+    }
+
+    /**
+     * Test if this module is working.
+     */
+    public static void selfTest() {
+	ReadWriteLock lock = new ReadWriteLock();
+
+	// readers share the lock
+	KThread[] threads = new KThread[3];
+	for (int i=0; i<threads.length; i++) {
+	    threads[i] = new KThread(new Reader(lock, i)).setName("reader");
+	    threads[i].fork();
+	}
+	for (int i=0; i<threads.length; i++)
+	    threads[i].join();
+
+	System.out.println((maxReading == threads.length ? "[PASS]" : "[FAIL]")
+			   + ": " + maxReading + " readers read at once");
+
+	// a waiting writer goes ahead of readers that arrive after it
+	log = "";
+	lock.acquireRead();
+	KThread writer = new KThread(new Writer(lock, 0)).setName("writer");
+	KThread reader = new KThread(new Reader(lock, 1)).setName("reader");
+	writer.fork();
+	KThread.yield();
+	reader.fork();
+	KThread.yield();
+	lock.releaseRead();
+	writer.join();
+	reader.join();
+
+	System.out.println((log.equals("w0r1") ? "[PASS]" : "[FAIL]")
+			   + ": waiting writer went before later reader (" + log
+			   + ")");
+
+	if (ThreadedKernel.scheduler instanceof PriorityScheduler)
+	    donationTest();
+    }
+
+    /**
+     * Test that waiting threads donate priority to a thread that holds the
+     * lock, after the thread they first donated to has let it go.
+     */
+    private static void donationTest() {
+	final ReadWriteLock lock = new ReadWriteLock();
+	final int high = 7;
+
+	// a waiting writer donates to the next reader once the first leaves
+	done = false;
+	lock.acquireRead();
+	KThread reader = new KThread(new Runnable() {
+		public void run() {
+		    lock.acquireRead();
+		    while (!done)
+			KThread.yield();
+		    lock.releaseRead();
+		}
+	    }).setName("reader");
+	reader.fork();
+	while (lock.readers.size() < 2)
+	    KThread.yield();
+
+	KThread writer = new KThread(new Writer(lock, 0)).setName("writer");
+	setPriority(writer, high);
+	writer.fork();
+	while (lock.numWaitingWriters == 0)
+	    KThread.yield();
+
+	lock.releaseRead();
+	int priority = getEffectivePriority(reader);
+	System.out.println((priority >= high ? "[PASS]" : "[FAIL]")
+			   + ": waiting writer donates to remaining reader ("
+			   + priority + ")");
+
+	done = true;
+	reader.join();
+	writer.join();
+
+	// a waiting reader donates to the writer the lock is handed to
+	lock.acquireWrite();
+	writer = new KThread(new Writer(lock, 1)).setName("writer");
+	writer.fork();
+	while (lock.numWaitingWriters == 0)
+	    KThread.yield();
+
+	reader = new KThread(new Reader(lock, 2)).setName("reader");
+	setPriority(reader, high);
+	reader.fork();
+	while (lock.numWaitingReaders == 0)
+	    KThread.yield();
+
+	lock.releaseWrite();
+	priority = getEffectivePriority(writer);
+	System.out.println((priority >= high ? "[PASS]" : "[FAIL]")
+			   + ": waiting reader donates to next writer ("
+			   + priority + ")");
+
+	writer.join();
+	reader.join();
+    }
+
+    private static void setPriority(KThread thread, int priority) {
+	boolean intStatus = Machine.interrupt().disable();
+	ThreadedKernel.scheduler.setPriority(thread, priority);
+	Machine.interrupt().restore(intStatus);
+    }
+
+    private static int getEffectivePriority(KThread thread) {
+	boolean intStatus = Machine.interrupt().disable();
+	int priority = ThreadedKernel.scheduler.getEffectivePriority(thread);
+	Machine.interrupt().restore(intStatus);
+	return priority;
+    }
+
+    private static boolean done = false;
+    private static int numReading = 0;
+    private static int maxReading = 0;
+    private static String log = "";
+
+    /** The thread writing, if any. */
+    private KThread writer = null;
+    /** The threads reading. */
+    private ArrayList<KThread> readers = new ArrayList<KThread>();
+
+    private int numWaitingReaders = 0;
+    private int numWaitingWriters = 0;
+    private ThreadQueue readQueue =
+	ThreadedKernel.scheduler.newThreadQueue(true);
+    private ThreadQueue writeQueue =
+	ThreadedKernel.scheduler.newThreadQueue(true);
+}
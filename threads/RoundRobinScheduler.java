@@ -30,6 +30,17 @@ public class RoundRobinScheduler extends Scheduler {
 	return new FifoQueue();
     }
 
+    /**
+     * Allocate the ready queue. It is a FIFO queue like any other, but links
+     * threads through <tt>KThread.nextReady</tt>, so that making a thread
+     * ready allocates nothing.
+     *
+     * @return	a new ready queue.
+     */
+    public ThreadQueue newReadyQueue() {
+	return new ReadyQueue();
+    }
+
     private class FifoQueue extends ThreadQueue {
 	/**
 	 * Add a thread to the end of the wait queue.
@@ -60,13 +71,11 @@ public class RoundRobinScheduler extends Scheduler {
 
 	/**
 	 * The specified thread has received exclusive access, without using
-	 * <tt>waitForAccess()</tt> or <tt>nextThread()</tt>. Assert that no
-	 * threads are waiting for access.
+	 * <tt>waitForAccess()</tt> or <tt>nextThread()</tt>. Priority is not
+	 * transferred, so there is nothing to do.
 	 */
 	public void acquire(KThread thread) {
 	    Lib.assertTrue(Machine.interrupt().disabled());
-		       
-	    Lib.assertTrue(waitQueue.isEmpty());
 	}
 
 	/**
@@ -81,4 +90,71 @@ public class RoundRobinScheduler extends Scheduler {
 
 	private LinkedList<KThread> waitQueue = new LinkedList<KThread>();
     }
+
+    /**
+     * A FIFO queue of ready threads, linked through their
+     * <tt>nextReady</tt> fields. A thread is made ready at most once before
+     * it runs, so it is never on this queue twice. Only
+     * <tt>KThread.ready()</tt> and <tt>KThread.runNextThread()</tt> use this
+     * queue, and both already run with interrupts disabled, so
+     * <tt>waitForAccess()</tt> and <tt>nextThread()</tt> do not check.
+     */
+    private class ReadyQueue extends ThreadQueue {
+	/**
+	 * Add a thread to the end of the ready queue.
+	 *
+	 * @param	thread	the thread to append to the queue.
+	 */
+	public void waitForAccess(KThread thread) {
+	    if (tail == null)
+		head = thread;
+	    else
+		tail.nextReady = thread;
+
+	    tail = thread;
+	}
+
+	/**
+	 * Remove a thread from the beginning of the queue.
+	 *
+	 * @return	the first thread on the queue, or <tt>null</tt> if the
+	 *		queue is empty.
+	 */
+	public KThread nextThread() {
+	    KThread thread = head;
+
+	    if (thread != null) {
+		head = thread.nextReady;
+		if (head == null)
+		    tail = null;
+		thread.nextReady = null;
+	    }
+
+	    return thread;
+	}
+
+	/**
+	 * The specified thread has received exclusive access, without using
+	 * <tt>waitForAccess()</tt> or <tt>nextThread()</tt>. Assert that no
+	 * threads are waiting for access.
+	 */
+	public void acquire(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    Lib.assertTrue(head == null);
+	}
+
+	/**
+	 * Print out the contents of the queue.
+	 */
+	public void print() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    for (KThread thread=head; thread != null; thread=thread.nextReady)
+		System.out.print(thread + " ");
+	}
+
+	private KThread head = null;
+	private KThread tail = null;
+    }
 }
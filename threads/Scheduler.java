@@ -52,6 +52,51 @@ public abstract class Scheduler {
      */
     public abstract ThreadQueue newThreadQueue(boolean transferPriority);
 
+    /**
+     * Allocate the queue of threads that are ready to run. This is called
+     * once, when the first thread is created. By default it is an ordinary
+     * thread queue that does not transfer priority, but a scheduler that
+     * treats the processor specially can return its own kind of queue.
+     *
+     * @return	a new ready queue.
+     */
+    public ThreadQueue newReadyQueue() {
+	return newThreadQueue(false);
+    }
+
+    /**
+     * Called by the timer interrupt handler, with interrupts disabled, to
+     * decide whether the current thread should give up the processor. By
+     * default the current thread yields on every timer interrupt.
+     *
+     * @return	<tt>true</tt> if the current thread should yield.
+     */
+    public boolean shouldPreempt() {
+	return true;
+    }
+
+    /**
+     * Return the number of ticks until the current thread should next be
+     * asked to give up the processor. With a tickless timer, the timer only
+     * interrupts after this many ticks when other threads are ready to run.
+     *
+     * @return	the number of ticks left in the current time slice.
+     */
+    public long timeSliceRemaining() {
+	return Stats.TimerTicks;
+    }
+
+    /**
+     * Called by <tt>KThread.sleep()</tt>, with interrupts disabled, when the
+     * current thread is about to block. Not every way of blocking uses a
+     * thread queue, so a scheduler that charges threads for the time they
+     * run should do so here. By default this does nothing.
+     *
+     * @param	thread	the current thread.
+     */
+    public void threadBlocked(KThread thread) {
+    }
+
     /**
      * Get the priority of the specified thread. Must be called with
      * interrupts disabled.
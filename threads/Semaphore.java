@@ -33,35 +33,42 @@ public class Semaphore {
 
     /**
      * Atomically wait for this semaphore to become non-zero and decrement it.
+     *
+     * <p>
+     * Only one thread runs at a time, and it can only lose the processor by
+     * sleeping, yielding, or enabling interrupts, so if the value is already
+     * non-zero it is decremented without disabling interrupts.
      */
     public void P() {
-	boolean intStatus = Machine.interrupt().disable();
-
-	if (value == 0) {
-	    waitQueue.waitForAccess(KThread.currentThread());
-	    KThread.sleep();
-	}
-	else {
+	if (value > 0) {
 	    value--;
+	    return;
 	}
 
+	boolean intStatus = Machine.interrupt().disable();
+
+	numWaiting++;
+	waitQueue.waitForAccess(KThread.currentThread());
+	KThread.sleep(ThreadStats.semaphoreWait);
+
 	Machine.interrupt().restore(intStatus);
     }
 
     /**
      * Atomically increment this semaphore and wake up at most one other thread
-     * sleeping on this semaphore.
+     * sleeping on this semaphore. If no thread is waiting, the value is
+     * incremented without disabling interrupts.
      */
     public void V() {
-	boolean intStatus = Machine.interrupt().disable();
-
-	KThread thread = waitQueue.nextThread();
-	if (thread != null) {
-	    thread.ready();
-	}
-	else {
+	if (numWaiting == 0) {
 	    value++;
+	    return;
 	}
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	numWaiting--;
+	waitQueue.nextThread().ready();
 	
 	Machine.interrupt().restore(intStatus);
     }
@@ -99,6 +106,8 @@ public class Semaphore {
     }
 
     private int value;
+    /** The number of threads waiting in <tt>P()</tt>. */
+    private int numWaiting = 0;
     private ThreadQueue waitQueue =
 	ThreadedKernel.scheduler.newThreadQueue(false);
 }
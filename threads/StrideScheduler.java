@@ -0,0 +1,304 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.Arrays;
+
+/**
+ * A scheduler that chooses threads using stride scheduling.
+ *
+ * <p>
+ * Like a lottery scheduler, a stride scheduler associates a number of tickets
+ * with each thread, and tickets are transferred through locks and joins by
+ * adding them to the holder's. Instead of holding a random drawing, each
+ * thread has a <i>stride</i>, inversely proportional to its tickets, and a
+ * <i>pass</i>. The waiting thread with the lowest pass is always chosen, and
+ * its pass then advances by its stride. Over any run of choices, each thread
+ * is chosen in proportion to its tickets, to within one choice, and the same
+ * choices are made on every run.
+ *
+ * <p>
+ * The waiting threads are kept in a binary heap ordered by pass, then by the
+ * order in which they started waiting, so choosing takes O(log n) time. A
+ * thread's stride is taken from its tickets each time it is chosen, so
+ * donated tickets take effect from its next choice.
+ *
+ * <p>
+ * Each queue has its own pass, that of the thread it chose last, and a
+ * waiting thread's pass only has meaning relative to it. So when a thread
+ * leaves a queue, how far its pass is ahead of the queue's is saved, and it
+ * joins its next queue the same distance ahead of that queue's pass. Passes
+ * run up on the ready queue then do not count against a thread on a lock's
+ * queue, or the other way around.
+ */
+public class StrideScheduler extends LotteryScheduler {
+    /**
+     * Allocate a new stride scheduler.
+     */
+    public StrideScheduler() {
+    }
+
+    @Override
+    protected ThreadState getThreadState(KThread thread) {
+    	if (thread.schedulingState == null)
+    		thread.schedulingState = new StrideState(thread);
+
+    	return (ThreadState) thread.schedulingState;
+    }
+
+    /**
+     * Allocate a new stride thread queue.
+     *
+     * @param	transferPriority	<tt>true</tt> if this queue should
+     *					transfer tickets from waiting threads
+     *					to the owning thread.
+     * @return	a new stride thread queue.
+     */
+    public ThreadQueue newThreadQueue(boolean transferPriority) {
+	return new StrideQueue(transferPriority);
+    }
+
+    /**
+     * Return the stride of a thread holding the specified number of tickets.
+     */
+    private static long stride(int tickets) {
+	return Math.max(stride1 / Math.max(tickets, 1), 1);
+    }
+
+    /**
+     * A stride thread queue. The ticket totals used for donation are kept by
+     * <tt>LotteryQueue</tt>; this class only replaces the drawing with a
+     * heap of waiting threads ordered by pass.
+     */
+    protected class StrideQueue extends LotteryQueue {
+
+		public StrideQueue(boolean transferPriority) {
+			super(transferPriority);
+		}
+
+		@Override
+		public void addState(ThreadState thread){
+			super.addState(thread);
+
+			StrideState s = (StrideState) thread;
+			s.pass = virtualPass + s.remain;
+			s.enqueued = numEnqueued++;
+
+			if (size == heap.length)
+				heap = Arrays.copyOf(heap, size*2);
+
+			heap[size] = s;
+			s.heapIndex = size++;
+			siftUp(s.heapIndex);
+		}
+
+		@Override
+		public void removeState(ThreadState thread){
+			StrideState s = (StrideState) thread;
+			int i = s.heapIndex;
+			Lib.assertTrue(i >= 0 && i < size && heap[i] == s);
+
+			super.removeState(thread);
+
+			s.remain = s.pass - virtualPass;
+			s.heapIndex = -1;
+			StrideState last = heap[--size];
+			heap[size] = null;
+
+			if (i < size) {
+				heap[i] = last;
+				last.heapIndex = i;
+				if (!siftUp(i))
+					siftDown(i);
+			}
+		}
+
+		@Override
+		public KThread nextThread(){
+			Lib.assertTrue(Machine.interrupt().disabled());
+			StrideState next = (StrideState) pickNextThread();
+			if (next == null)
+				return null;
+
+			virtualPass = next.pass;
+			next.pass += stride(next.getEffectivePriority());
+
+			this.acquire(next.thread);
+			return next.thread;
+		}
+
+		/**
+		 * Return the waiting thread with the lowest pass.
+		 */
+		@Override
+		public ThreadState pickNextThread(){
+			return (size == 0) ? null : heap[0];
+		}
+
+		@Override
+		public String toString(){
+			return "stride: " + waiting() + "holder:" + lockHolder + " pass: " + virtualPass;
+		}
+
+		/** Tests whether waiter <i>a</i> should be chosen before <i>b</i>. */
+		private boolean before(StrideState a, StrideState b) {
+			// compare the difference, so that passes may wrap around
+			if (a.pass != b.pass)
+				return a.pass - b.pass < 0;
+
+			return a.enqueued < b.enqueued;
+		}
+
+		/** Move the waiter at index i up; return true if it moved. */
+		private boolean siftUp(int i) {
+			StrideState thread = heap[i];
+			int start = i;
+
+			while (i > 0) {
+				int parent = (i-1) / 2;
+				if (!before(thread, heap[parent]))
+					break;
+				heap[i] = heap[parent];
+				heap[i].heapIndex = i;
+				i = parent;
+			}
+
+			heap[i] = thread;
+			thread.heapIndex = i;
+			return i != start;
+		}
+
+		/** Move the waiter at index i down. */
+		private void siftDown(int i) {
+			StrideState thread = heap[i];
+
+			while (true) {
+				int child = 2*i + 1;
+				if (child >= size)
+					break;
+				if (child+1 < size && before(heap[child+1], heap[child]))
+					child++;
+				if (!before(heap[child], thread))
+					break;
+				heap[i] = heap[child];
+				heap[i].heapIndex = i;
+				i = child;
+			}
+
+			heap[i] = thread;
+			thread.heapIndex = i;
+		}
+
+		/** The waiting threads, as a binary heap. */
+		private StrideState[] heap = new StrideState[4];
+		/** The pass of the thread chosen last. */
+		private long virtualPass = 0;
+		/** The number of times a thread has started waiting on this queue. */
+		private long numEnqueued = 0;
+    }
+
+    protected class StrideState extends LotteryState {
+
+		public StrideState(KThread thread) {
+			super(thread);
+		}
+
+		@Override
+		public String toString(){
+			return "p: " + priority + " e: " + effectivePriority + " pass: " + pass + " t: " + thread;
+		}
+
+		/** The pass of this thread, on the queue it is waiting on. */
+		protected long pass = 0;
+		/** How far this thread's pass was ahead of its last queue's. */
+		private long remain = 0;
+		/** The order in which this thread started waiting on its queue. */
+		private long enqueued = 0;
+		/** The index of this thread in its queue's heap, or -1. */
+		private int heapIndex = -1;
+    }
+
+    public static void selfTest(){
+    	System.out.println("Testing stride");
+    	boolean restore = Machine.interrupt().disable();
+
+    	ThreadQueue q = ThreadedKernel.scheduler.newThreadQueue(false);
+    	KThread[] t = new KThread[4];
+    	int[] wins = new int[t.length];
+    	for (int i=0; i<t.length; i++){
+    		t[i] = new KThread().setName("s" + i);
+    		ThreadedKernel.scheduler.setPriority(t[i], i+1);
+    		q.waitForAccess(t[i]);
+    	}
+    	q.acquire(new KThread().setName("s holder"));
+
+    	int choices = 10000;
+    	for (int n=0; n<choices; n++){
+    		KThread chosen = q.nextThread();
+    		for (int i=0; i<t.length; i++){
+    			if (chosen == t[i])
+    				wins[i]++;
+    		}
+    		q.waitForAccess(chosen);
+    	}
+    	for (int i=0; i<t.length; i++){
+    		System.out.println(t[i] + " (" + (i+1) + " tickets) chosen " + wins[i] + " of " + choices
+    				+ ", expected " + choices*(i+1)/10);
+    		Lib.assertTrue(Math.abs(wins[i] - choices*(i+1)/10) <= 1);
+    	}
+
+    	// a thread whose pass has run far ahead on one queue still gets its
+    	// share on another
+    	KThread a = new KThread().setName("s a");
+    	KThread b = new KThread().setName("s b");
+    	ThreadQueue q1 = ThreadedKernel.scheduler.newThreadQueue(false);
+    	ThreadQueue q2 = ThreadedKernel.scheduler.newThreadQueue(false);
+    	q2.acquire(new KThread().setName("s holder 2"));
+
+    	for (int n=0; n<choices; n++){
+    		q1.waitForAccess(a);
+    		Lib.assertTrue(q1.nextThread() == a);
+    	}
+
+    	int aWins = 0;
+    	q2.waitForAccess(a);
+    	q2.waitForAccess(b);
+    	for (int n=0; n<100; n++){
+    		KThread chosen = q2.nextThread();
+    		if (chosen == a)
+    			aWins++;
+    		q2.waitForAccess(chosen);
+    	}
+    	System.out.println(a + " chosen " + aWins + " of 100 on a second queue, expected 50");
+    	Lib.assertTrue(Math.abs(aWins - 50) <= 1);
+
+    	// shares are kept when passes wrap around
+    	KThread c = new KThread().setName("s c");
+    	KThread d = new KThread().setName("s d");
+    	ThreadedKernel.scheduler.setPriority(d, 2);
+    	StrideQueue q3 = (StrideQueue) ThreadedKernel.scheduler.newThreadQueue(false);
+    	q3.virtualPass = Long.MAX_VALUE - 10*stride1;
+    	q3.acquire(new KThread().setName("s holder 3"));
+
+    	int cWins = 0;
+    	q3.waitForAccess(c);
+    	q3.waitForAccess(d);
+    	for (int n=0; n<300; n++){
+    		KThread chosen = q3.nextThread();
+    		if (chosen == c)
+    			cWins++;
+    		q3.waitForAccess(chosen);
+    	}
+    	System.out.println(c + " chosen " + cWins + " of 300 across a wrap, expected 100");
+    	Lib.assertTrue(Math.abs(cWins - 100) <= 1);
+
+    	Machine.interrupt().restore(restore);
+    }
+
+    /**
+     * The stride of a thread holding one ticket. Threads holding more tickets
+     * than this all get a stride of 1, and passes take about 2<sup>43</sup>
+     * choices to wrap around.
+     */
+    private static final long stride1 = 1L << 20;
+}
@@ -84,7 +84,9 @@ public abstract class ThreadQueue {
      *
      * <p>
      * This method should not be called for a thread returned from
-     * <tt>nextThread()</tt>.
+     * <tt>nextThread()</tt>. It may be called while threads are waiting, when
+     * access passes to a thread that did not wait on this queue, so that the
+     * waiting threads transfer priority to the new thread.
      *
      * @param	thread	the thread that has received access, but was not
      * 			returned from <tt>nextThread()</tt>.
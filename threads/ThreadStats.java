@@ -0,0 +1,272 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Scheduling statistics for one <tt>KThread</tt>: the ticks it has spent
+ * running, the ticks it has spent on the ready queue waiting to run, how
+ * often it gave up the processor voluntarily or was preempted, and the ticks
+ * it has spent blocked on each kind of synchronization primitive.
+ *
+ * <p>
+ * Statistics are only kept when <tt>ThreadedKernel.threadStats</tt> is
+ * <tt>true</tt>. They are printed by <tt>Machine.halt()</tt>, along with a
+ * histogram of how long threads waited on the ready queue before they were
+ * run. Long ready waits for a few threads point to starvation; long lock
+ * waits spread over many threads point to convoying.
+ *
+ * <p>
+ * When a thread finishes, its statistics are added to running totals and
+ * dropped, unless it is one of the threads that waited longest to run, so
+ * the memory used does not grow with the number of threads ever created.
+ */
+public class ThreadStats {
+    /**
+     * Start keeping statistics for every thread created from now on, and
+     * print them when the machine halts.
+     */
+    public static void enable() {
+	enabled = true;
+
+	Machine.addHaltReport(new Runnable() {
+		public void run() { print(); }
+	    });
+    }
+
+    /**
+     * Return a new statistics object for the specified thread, or
+     * <tt>null</tt> if statistics are not being kept.
+     */
+    static ThreadStats create(KThread thread) {
+	if (!enabled)
+	    return null;
+
+	ThreadStats stats = new ThreadStats(thread);
+	stats.index = live.size();
+	live.add(stats);
+	return stats;
+    }
+
+    private ThreadStats(KThread thread) {
+	this.thread = thread;
+    }
+
+    /** Called when the thread is put on the ready queue. */
+    void ready() {
+	readySince = lastReady = Machine.timer().getTime();
+    }
+
+    /** Called when the thread starts running. */
+    void started() {
+	long time = Machine.timer().getTime();
+
+	if (readySince >= 0) {
+	    long waited = time - readySince;
+	    ticksReady += waited;
+	    readyWaits[bucket(waited)]++;
+	    readySince = -1;
+	}
+
+	runningSince = time;
+    }
+
+    /**
+     * Called when the thread stops running.
+     *
+     * @param	switched	<tt>true</tt> if another thread is about to run.
+     * @param	blocked		<tt>true</tt> if the thread is blocked, rather
+     *				than ready to run.
+     */
+    void stopped(boolean switched, boolean blocked) {
+	if (runningSince >= 0) {
+	    ticksRun += Machine.timer().getTime() - runningSince;
+	    runningSince = -1;
+	}
+
+	if (switched) {
+	    if (preempted && !blocked)
+		involuntarySwitches++;
+	    else
+		voluntarySwitches++;
+	}
+
+	preempted = false;
+    }
+
+    /** Called when the timer is about to make the thread yield. */
+    void preempted() {
+	preempted = true;
+    }
+
+    /**
+     * Called when the thread has finished, once it has stopped running for
+     * the last time. Its statistics are added to the totals for finished
+     * threads, and are only kept if it has waited longer to run than one of
+     * the finished threads kept so far.
+     */
+    void finished() {
+	ThreadStats last = live.remove(live.size()-1);
+	if (last != this) {
+	    live.set(index, last);
+	    last.index = index;
+	}
+
+	finishedTotals.add(this);
+	numFinished++;
+
+	name = thread.toString();
+	thread = null;
+
+	if (numLongest < longest.length) {
+	    longest[numLongest++] = this;
+	    return;
+	}
+
+	int shortest = 0;
+	for (int i=1; i<numLongest; i++) {
+	    if (longest[i].ticksReady < longest[shortest].ticksReady)
+		shortest = i;
+	}
+
+	if (longest[shortest].ticksReady < ticksReady)
+	    longest[shortest] = this;
+    }
+
+    /**
+     * Add the specified thread's statistics to this object's.
+     */
+    private void add(ThreadStats stats) {
+	ticksRun += stats.ticksRun;
+	ticksReady += stats.ticksReady;
+	voluntarySwitches += stats.voluntarySwitches;
+	involuntarySwitches += stats.involuntarySwitches;
+	for (int i=0; i<numWaitTypes; i++)
+	    ticksBlocked[i] += stats.ticksBlocked[i];
+    }
+
+    /**
+     * Called when the thread runs again after blocking at time <i>since</i>.
+     * It was blocked until it was put back on the ready queue.
+     */
+    void blocked(int waitType, long since) {
+	ticksBlocked[waitType] += lastReady - since;
+    }
+
+    /**
+     * Return the histogram bucket for a wait of the specified length: bucket
+     * 0 holds waits of 0 ticks, and bucket <i>i</i> holds waits of at least
+     * 2<sup><i>i</i>-1</sup> and less than 2<sup><i>i</i></sup> ticks.
+     */
+    private static int bucket(long ticks) {
+	return 64 - Long.numberOfLeadingZeros(ticks);
+    }
+
+    /**
+     * Print the totals for all threads, the threads that waited longest to
+     * run, and the histogram of ready queue waits.
+     */
+    private static void print() {
+	ThreadStats total = new ThreadStats(null);
+	total.add(finishedTotals);
+	for (ThreadStats stats : live)
+	    total.add(stats);
+
+	System.out.println("Threads: " + (numFinished + live.size())
+			   + ", run " + total.ticksRun
+			   + ", ready " + total.ticksReady
+			   + ", switches " + total.voluntarySwitches
+			   + " voluntary " + total.involuntarySwitches
+			   + " involuntary");
+	System.out.println("Blocked: lock " + total.ticksBlocked[lockWait]
+			   + ", semaphore " + total.ticksBlocked[semaphoreWait]
+			   + ", condition " + total.ticksBlocked[conditionWait]);
+
+	ThreadStats[] sorted = live.toArray(new ThreadStats[live.size()
+							    + numLongest]);
+	System.arraycopy(longest, 0, sorted, live.size(), numLongest);
+	Arrays.sort(sorted, new Comparator<ThreadStats>() {
+		public int compare(ThreadStats a, ThreadStats b) {
+		    return Long.compare(b.ticksReady, a.ticksReady);
+		}
+	    });
+
+	for (int i=0; i<Math.min(sorted.length, maxThreadsPrinted); i++)
+	    System.out.println("  " + sorted[i]);
+
+	long count = 0;
+	for (int i=0; i<readyWaits.length; i++)
+	    count += readyWaits[i];
+
+	System.out.println("Ready queue waits ("
+			   + Config.getString("ThreadedKernel.scheduler")
+			   + "): " + count);
+	for (int i=0; i<readyWaits.length; i++) {
+	    if (readyWaits[i] == 0)
+		continue;
+
+	    if (i == 0)
+		System.out.println("  0 ticks: " + readyWaits[i]);
+	    else
+		System.out.println("  " + (1L << (i-1)) + "-" + ((1L << i) - 1)
+				   + " ticks: " + readyWaits[i]);
+	}
+    }
+
+    public String toString() {
+	return (thread != null ? thread.toString() : name)
+	    + ": run " + ticksRun + ", ready " + ticksReady
+	    + ", switches " + voluntarySwitches + "/" + involuntarySwitches
+	    + ", blocked " + ticksBlocked[lockWait]
+	    + "/" + ticksBlocked[semaphoreWait]
+	    + "/" + ticksBlocked[conditionWait];
+    }
+
+    /** Time blocked acquiring a <tt>Lock</tt>. */
+    static final int lockWait = 0;
+    /** Time blocked in <tt>Semaphore.P()</tt>. */
+    static final int semaphoreWait = 1;
+    /** Time blocked in <tt>Condition2.sleep()</tt>. */
+    static final int conditionWait = 2;
+    static final int numWaitTypes = 3;
+
+    /** The thread, or <tt>null</tt> once it has finished. */
+    private KThread thread;
+    /** The name of the thread, once it has finished. */
+    private String name = null;
+    /** The index of these statistics in <tt>live</tt>. */
+    private int index = -1;
+
+    private long ticksRun = 0;
+    private long ticksReady = 0;
+    private long voluntarySwitches = 0;
+    private long involuntarySwitches = 0;
+    private long[] ticksBlocked = new long[numWaitTypes];
+
+    /** When the thread was last put on the ready queue, or -1. */
+    private long readySince = -1;
+    /** When the thread was last put on the ready queue. */
+    private long lastReady = 0;
+    /** When the thread last started running, or -1. */
+    private long runningSince = -1;
+    /** Whether the timer is making the thread yield. */
+    private boolean preempted = false;
+
+    /** The number of threads listed individually. */
+    private static final int maxThreadsPrinted = 10;
+
+    private static boolean enabled = false;
+    /** The statistics of every thread that has not finished. */
+    private static ArrayList<ThreadStats> live = new ArrayList<ThreadStats>();
+    /** The totals for every thread that has finished. */
+    private static ThreadStats finishedTotals = new ThreadStats(null);
+    private static int numFinished = 0;
+    /** The finished threads that waited longest to run, in no order. */
+    private static ThreadStats[] longest = new ThreadStats[maxThreadsPrinted];
+    private static int numLongest = 0;
+    /** The number of ready queue waits of each length, by bucket. */
+    private static long[] readyWaits = new long[65];
+}
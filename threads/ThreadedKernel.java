@@ -32,6 +32,8 @@ public class ThreadedKernel extends Kernel {
     	    fileSystem = null;
 
     	// start threading
+    	if (Config.getBoolean("ThreadedKernel.threadStats", false))
+    	    ThreadStats.enable();
     	new KThread(null);
 
     	alarm  = new Alarm();
@@ -53,7 +55,14 @@ public class ThreadedKernel extends Kernel {
     	//PriorityScheduler.selfTest();
     	//Communicator.selfTest();
     	//LotteryScheduler.selfTest();
+    	//StrideScheduler.selfTest();
+    	//MLFQScheduler.selfTest();
+    	//ReadWriteLock.selfTest();
+    	//Barrier.selfTest();
+    	//BoundedCommunicator.selfTest();
     	//Boat.selfTest();
+    	if (Config.getBoolean("ThreadedKernel.benchmark", false))
+    	    ContextSwitchBenchmark.selfTest();
     	if (Machine.bank() != null) {
     	    ElevatorBank.selfTest();
     	}
@@ -88,4 +97,9 @@ public class ThreadedKernel extends Kernel {
     private static Communicator dummy5 = null;
     private static Rider dummy6 = null;
     private static ElevatorController dummy7 = null;
+    private static StrideScheduler dummy8 = null;
+    private static ReadWriteLock dummy9 = null;
+    private static Barrier dummy10 = null;
+    private static CountDownLatch dummy11 = null;
+    private static BoundedCommunicator<Integer> dummy12 = null;
 }
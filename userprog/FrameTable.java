@@ -0,0 +1,293 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+import java.util.Arrays;
+
+/**
+ * The frame table records, for every page of physical memory, whether it is
+ * free, and if not, which process owns it, which of that process's virtual
+ * pages it holds, how many times it has been pinned, and whether it has been
+ * referenced.
+ *
+ * <p>
+ * Free frames are kept in a bitmap, one bit per frame, so a frame is found by
+ * looking for the first set bit from where the last search stopped, and
+ * allocating or freeing a frame allocates no objects. <tt>allocate()</tt>
+ * and <tt>free()</tt> also work on a whole page table at once, holding the
+ * frame table lock only once.
+ *
+ * <p>
+ * Freed frames are not cleared. A frame that may still hold another
+ * process's data is marked, and is only cleared if its next owner asks for
+ * it to be, with <tt>zeroFill()</tt>; frames that are about to be
+ * overwritten, such as those loaded from a COFF section, never need to be.
+ * Freeing a process's memory therefore costs nothing per byte.
+ */
+public class FrameTable {
+    /**
+     * Allocate a new frame table, with every frame free.
+     *
+     * @param	numFrames	the number of pages of physical memory.
+     */
+    public FrameTable(int numFrames) {
+	this.numFrames = numFrames;
+
+	owner = new UserProcess[numFrames];
+	vpn = new int[numFrames];
+	pinCount = new int[numFrames];
+
+	freeMap = new long[(numFrames + 63) / 64];
+	referenced = new long[freeMap.length];
+	unzeroed = new long[freeMap.length];
+
+	for (int i=0; i<numFrames; i++)
+	    freeMap[i/64] |= 1L << i;
+
+	numFree = numFrames;
+    }
+
+    /**
+     * Allocate a frame to hold the specified virtual page of the specified
+     * process.
+     *
+     * @param	process	the process that will own the frame.
+     * @param	vpn	the virtual page the frame will hold.
+     * @return	the physical page number of the frame, or -1 if no frame is
+     *		free.
+     */
+    public int allocate(UserProcess process, int vpn) {
+	lock.acquire();
+
+	int ppn = (numFree > 0) ? take(process, vpn) : -1;
+
+	lock.release();
+
+	return ppn;
+    }
+
+    /**
+     * Allocate a frame for every entry in a page table, setting each entry's
+     * <tt>ppn</tt>. Either every entry gets a frame or, if there are not
+     * enough free frames, none does.
+     *
+     * @param	process		the process that will own the frames.
+     * @param	entries		the page table entries to allocate frames
+     *				for; entry <i>i</i> holds virtual page
+     *				<tt>entries[i].vpn</tt>.
+     * @return	<tt>true</tt> if the frames were allocated.
+     */
+    public boolean allocate(UserProcess process, TranslationEntry[] entries) {
+	lock.acquire();
+
+	boolean enough = (entries.length <= numFree);
+	if (enough) {
+	    for (int i=0; i<entries.length; i++)
+		entries[i].ppn = take(process, entries[i].vpn);
+	}
+
+	lock.release();
+
+	return enough;
+    }
+
+    /**
+     * Free the specified frame.
+     *
+     * @param	ppn	the physical page number of the frame to free.
+     */
+    public void free(int ppn) {
+	lock.acquire();
+
+	give(ppn);
+
+	lock.release();
+    }
+
+    /**
+     * Free the frame of every valid entry in a page table.
+     *
+     * @param	entries	the page table entries whose frames to free.
+     */
+    public void free(TranslationEntry[] entries) {
+	lock.acquire();
+
+	for (int i=0; i<entries.length; i++) {
+	    if (entries[i] != null && entries[i].valid)
+		give(entries[i].ppn);
+	}
+
+	lock.release();
+    }
+
+    /**
+     * Make sure the specified frame holds only zeros, clearing it if it may
+     * still hold data from a previous owner. The frame must be allocated.
+     *
+     * @param	ppn	the physical page number of the frame.
+     */
+    public void zeroFill(int ppn) {
+	Lib.assertTrue(ppn >= 0 && ppn < numFrames && owner[ppn] != null);
+
+	if ((unzeroed[ppn/64] & (1L << ppn)) == 0)
+	    return;
+
+	int pageSize = Processor.pageSize;
+	Arrays.fill(Machine.processor().getMemory(),
+		    ppn*pageSize, (ppn+1)*pageSize, (byte) 0);
+	Machine.processor().flushInstructionCache(ppn);
+
+	unzeroed[ppn/64] &= ~(1L << ppn);
+    }
+
+    /**
+     * Return the number of free frames.
+     *
+     * @return	the number of free frames.
+     */
+    public int getNumFree() {
+	return numFree;
+    }
+
+    /**
+     * Return the process that owns the specified frame.
+     *
+     * @param	ppn	the physical page number of the frame.
+     * @return	the owner, or <tt>null</tt> if the frame is free.
+     */
+    public UserProcess getOwner(int ppn) {
+	Lib.assertTrue(ppn >= 0 && ppn < numFrames);
+	return owner[ppn];
+    }
+
+    /**
+     * Return the virtual page held in the specified frame.
+     *
+     * @param	ppn	the physical page number of an allocated frame.
+     * @return	the virtual page number, in the owner's address space.
+     */
+    public int getVPN(int ppn) {
+	Lib.assertTrue(ppn >= 0 && ppn < numFrames && owner[ppn] != null);
+	return vpn[ppn];
+    }
+
+    /**
+     * Pin the specified frame, so that it is not taken from its owner while
+     * the kernel is using it. Frames may be pinned more than once, and stay
+     * pinned until each pin is removed.
+     *
+     * @param	ppn	the physical page number of an allocated frame.
+     */
+    public void pin(int ppn) {
+	Lib.assertTrue(ppn >= 0 && ppn < numFrames && owner[ppn] != null);
+	pinCount[ppn]++;
+    }
+
+    /**
+     * Remove one pin from the specified frame.
+     *
+     * @param	ppn	the physical page number of a pinned frame.
+     */
+    public void unpin(int ppn) {
+	Lib.assertTrue(ppn >= 0 && ppn < numFrames && pinCount[ppn] > 0);
+	pinCount[ppn]--;
+    }
+
+    /**
+     * Test whether the specified frame is pinned.
+     *
+     * @param	ppn	the physical page number of the frame.
+     * @return	<tt>true</tt> if the frame has at least one pin.
+     */
+    public boolean isPinned(int ppn) {
+	Lib.assertTrue(ppn >= 0 && ppn < numFrames);
+	return pinCount[ppn] > 0;
+    }
+
+    /**
+     * Set or clear the referenced bit of the specified frame.
+     *
+     * @param	ppn		the physical page number of the frame.
+     * @param	value		the new value of the referenced bit.
+     */
+    public void setReferenced(int ppn, boolean value) {
+	Lib.assertTrue(ppn >= 0 && ppn < numFrames);
+
+	if (value)
+	    referenced[ppn/64] |= 1L << ppn;
+	else
+	    referenced[ppn/64] &= ~(1L << ppn);
+    }
+
+    /**
+     * Test the referenced bit of the specified frame.
+     *
+     * @param	ppn	the physical page number of the frame.
+     * @return	the referenced bit.
+     */
+    public boolean isReferenced(int ppn) {
+	Lib.assertTrue(ppn >= 0 && ppn < numFrames);
+	return (referenced[ppn/64] & (1L << ppn)) != 0;
+    }
+
+    /**
+     * Take the first free frame at or after the search hint, and give it to
+     * the specified process. The frame table lock must be held, and a frame
+     * must be free.
+     */
+    private int take(UserProcess process, int page) {
+	Lib.assertTrue(numFree > 0);
+
+	int word = nextWord;
+	while (freeMap[word] == 0)
+	    word = (word + 1) % freeMap.length;
+	nextWord = word;
+
+	int ppn = word*64 + Long.numberOfTrailingZeros(freeMap[word]);
+	freeMap[word] &= ~(1L << ppn);
+	numFree--;
+
+	owner[ppn] = process;
+	vpn[ppn] = page;
+	pinCount[ppn] = 0;
+	setReferenced(ppn, false);
+
+	return ppn;
+    }
+
+    /**
+     * Return the specified frame to the free map. The frame table lock must
+     * be held.
+     */
+    private void give(int ppn) {
+	Lib.assertTrue(ppn >= 0 && ppn < numFrames && owner[ppn] != null);
+	Lib.assertTrue(pinCount[ppn] == 0);
+
+	owner[ppn] = null;
+	freeMap[ppn/64] |= 1L << ppn;
+	unzeroed[ppn/64] |= 1L << ppn;
+	numFree++;
+    }
+
+    private int numFrames;
+    private int numFree;
+
+    /** The process owning each frame, or <tt>null</tt> if it is free. */
+    private UserProcess[] owner;
+    /** The virtual page held in each allocated frame. */
+    private int[] vpn;
+    /** The number of pins on each allocated frame. */
+    private int[] pinCount;
+
+    /** One bit per frame, set if the frame is free. */
+    private long[] freeMap;
+    /** One bit per frame, set if the frame has been referenced. */
+    private long[] referenced;
+    /** One bit per frame, set if the frame may hold a previous owner's data. */
+    private long[] unzeroed;
+    /** The word of <tt>freeMap</tt> the next search starts from. */
+    private int nextWord = 0;
+
+    private Lock lock = new Lock();
+}
@@ -3,7 +3,6 @@ package nachos.userprog;
 import nachos.machine.*;
 import nachos.threads.*;
 import nachos.userprog.*;
-import java.util.LinkedList;
 
 /**
  * A kernel that can support multiple user processes.
@@ -29,17 +28,8 @@ public class UserKernel extends ThreadedKernel {
 			public void run() { exceptionHandler(); }
 		});		
 		
-		// create global Linked List of available physical pages 
-		freePages = new LinkedList<Integer>();
-		
-		// populate this Linked List of pages 
-		int numPhysPages = Machine.processor().getNumPhysPages();
-		for(int i = 0; i < numPhysPages; i++) {
-			freePages.add(new Integer(i));
-		}
-		
-		// create lock to prevent synchronization conflicts
-		freePagesLock = new Lock();
+		// create global table of physical pages, all of them free
+		frameTable = new FrameTable(Machine.processor().getNumPhysPages());
     }
 
     /**
@@ -126,9 +116,6 @@ public class UserKernel extends ThreadedKernel {
     // dummy variables to make javac smarter
     private static Coff dummy1 = null;
     
-    // linked list of free available physical pages
-    public static LinkedList<Integer> freePages;
-    
-    // lock for synchronization when accessing freePages
-    public static Lock freePagesLock;
+    /** Globally accessible table of the pages of physical memory. */
+    public static FrameTable frameTable;
 }
@@ -270,6 +270,7 @@ public class UserProcess {
 					
 					// copy data --> memory 					
 					System.arraycopy(data, offset + numBytesTransferred,  memory,  startingPhysAddr,  writeLength);
+					Machine.processor().flushInstructionCache(currentPage.ppn);
 					
 					numBytesTransferred += writeLength;
 					length -= writeLength;	
@@ -389,19 +390,21 @@ public class UserProcess {
 		    return false;
 		}
 		
-		UserKernel.freePagesLock.acquire();
-		
 		// create this user process's page table
 		pageTable = new TranslationEntry[numPages];
-		
-		// populate this user process's page table
 		for(int i = 0; i < numPages; i++) {
-			pageTable[i] = new TranslationEntry(i, UserKernel.freePages.poll(), true, false, false, false);
+			pageTable[i] = new TranslationEntry(i, -1, true, false, false, false);
 		}
 		
-		UserKernel.freePagesLock.release();
+		// give every page a physical page, or fail if there are not enough
+		if (!UserKernel.frameTable.allocate(this, pageTable)) {
+			coff.close();
+			Lib.debug(dbgProcess, "\tinsufficient physical memory");
+			return false;
+		}
 
 		// load sections (slightly modified this but most of it was provided)
+		int coffPages = 0;
 		for (int s=0; s<coff.getNumSections(); s++) {
 			CoffSection section = coff.getSection(s);
 	    
@@ -421,6 +424,13 @@ public class UserProcess {
 		    		COFFTranslationEntry.readOnly = true;
 		    	}				
 	    	}
+			coffPages = Math.max(coffPages, section.getFirstVPN() + section.getLength());
+		}
+		
+		// the stack and argument pages are not loaded, so they must be
+		// cleared of whatever the previous owner left in them
+		for (int vpn = coffPages; vpn < numPages; vpn++) {
+			UserKernel.frameTable.zeroFill(pageTable[vpn].ppn);
 		}
 	
 		return true;
@@ -430,27 +440,10 @@ public class UserProcess {
      * Release any resources allocated by <tt>loadSections()</tt>.
      */
     protected void unloadSections() {
-    	byte[] memory = Machine.processor().getMemory();
-    	int startingPhysAddr = 0; // starting physical addr of what we are going to unload
-    	int endingPhysAddr = 0; // ending physical addr of what we are going to unload
-    	
-    	UserKernel.freePagesLock.acquire();
-    	
-    	for(int i = 0; i < numPages; i++) {
-    		// clear its memory using its physical address (physical page 
-    		// number * page size) as starting point until the next page as 
-    		// ending point
-    		startingPhysAddr = pageTable[i].ppn * pageSize; 
-    		endingPhysAddr = (pageTable[i].ppn + 1) * pageSize;    		
-    		for(int j = startingPhysAddr; j < endingPhysAddr; j++) {
-    			memory[j] = 0; // clear this spot in memory
-    		}
-    		
-    		// re-add this page to the list of available pages
-    		UserKernel.freePages.add(new Integer(pageTable[i].ppn));
-    	}
-    	
-    	UserKernel.freePagesLock.release();
+    	// return every page to the frame table at once. The pages are not
+    	// cleared here; the next process to use them clears the ones it
+    	// does not overwrite.
+    	UserKernel.frameTable.free(pageTable);
     }    
 
     /**
@@ -777,8 +770,17 @@ public class UserProcess {
     		return -1;
     	}
     	children.put(child.PID, childProcess);
-    	child.execute(fileName, argumentList);
-    	
+    	if (!child.execute(fileName, argumentList)){
+    		debug("could not load child so returning -1");
+    		children.remove(child.PID);
+
+    		// the child will never run, so it will never exit
+    		globalLock.acquire();
+    		totalPID --;
+    		globalLock.release();
+    		return -1;
+    	}
+
     	debug("RETURNING pid " + child.PID);
     	return child.PID;
     }
@@ -824,7 +826,7 @@ public class UserProcess {
 		return 1;
     }
 
-    private int handleExit(Integer status){
+    protected int handleExit(Integer status){
     	joinLock.acquire();
     	
     	if (this.children == null){
@@ -7,6 +7,19 @@ import nachos.vm.*;
 
 /**
  * A <tt>UserProcess</tt> that supports demand-paging.
+ *
+ * <p>
+ * Only the argument page is given a physical page when the program is
+ * loaded, since the kernel writes the arguments into it. The first time the
+ * program touches any other page, the fault handler allocates a frame and
+ * either loads the page from its COFF section or, for the stack, fills it
+ * with zeros. A program therefore only uses frames for the pages it touches,
+ * and starts without reading its executable.
+ *
+ * <p>
+ * With a TLB, the page table is the kernel's own record: TLB misses are
+ * filled from it, and the used and dirty bits of TLB entries are copied back
+ * to it when they are replaced, and when the process is switched out.
  */
 public class VMProcess extends UserProcess {
     /**
@@ -22,6 +35,20 @@ public class VMProcess extends UserProcess {
      */
     public void saveState() {
 	super.saveState();
+
+	// the next process must not see this process's translations
+	if (Machine.processor().hasTLB()) {
+	    Processor processor = Machine.processor();
+	    for (int i=0; i<processor.getTLBSize(); i++) {
+		TranslationEntry entry = syncTLBEntry(i);
+		if (entry.valid) {
+		    entry.valid = false;
+		    processor.writeTLBEntry(i, entry);
+		}
+	    }
+	}
+
+	chargeTLBStats();
     }
 
     /**
@@ -29,17 +56,78 @@ public class VMProcess extends UserProcess {
      * <tt>UThread.restoreState()</tt>.
      */
     public void restoreState() {
-	super.restoreState();
+	Processor processor = Machine.processor();
+
+	// with a TLB, there is no page table to install; misses fill the TLB
+	if (!processor.hasTLB())
+	    super.restoreState();
+
+	tlbHitsMark = processor.getTLBHits();
+	tlbMissesMark = processor.getTLBMisses();
+	tlbEvictionsMark = processor.getTLBEvictions();
+    }
+
+    /**
+     * Charge this process for the TLB activity since it was last charged.
+     * Must be called while this process is running.
+     */
+    private void chargeTLBStats() {
+	Processor processor = Machine.processor();
+
+	long hits = processor.getTLBHits();
+	long misses = processor.getTLBMisses();
+	long evictions = processor.getTLBEvictions();
+
+	tlbHits += hits - tlbHitsMark;
+	tlbMisses += misses - tlbMissesMark;
+	tlbEvictions += evictions - tlbEvictionsMark;
+
+	tlbHitsMark = hits;
+	tlbMissesMark = misses;
+	tlbEvictionsMark = evictions;
     }
 
     /**
      * Initializes page tables for this process so that the executable can be
-     * demand-paged.
+     * demand-paged. Every page but the argument page starts out invalid, and
+     * records which COFF section, if any, it is loaded from.
+     *
+     * <p>
+     * The argument page is brought in now, so that a lack of memory makes
+     * the program fail to load, rather than the kernel's writes of its
+     * arguments fail.
      *
      * @return	<tt>true</tt> if successful.
      */
     protected boolean loadSections() {
-	return super.loadSections();
+	pageTable = new TranslationEntry[numPages];
+	pageSections = new CoffSection[numPages];
+
+	for (int vpn=0; vpn<numPages; vpn++)
+	    pageTable[vpn] = new TranslationEntry(vpn, -1, false, false,
+						  false, false);
+
+	for (int s=0; s<coff.getNumSections(); s++) {
+	    CoffSection section = coff.getSection(s);
+
+	    Lib.debug(dbgProcess, "\tdeferring " + section.getName()
+		      + " section (" + section.getLength() + " pages)");
+
+	    for (int i=0; i<section.getLength(); i++) {
+		int vpn = section.getFirstVPN()+i;
+
+		pageSections[vpn] = section;
+		pageTable[vpn].readOnly = section.isReadOnly();
+	    }
+	}
+
+	if (!faultIn(numPages-1)) {
+	    coff.close();
+	    Lib.debug(dbgProcess, "\tinsufficient physical memory");
+	    return false;
+	}
+
+	return true;
     }
 
     /**
@@ -47,8 +135,128 @@ public class VMProcess extends UserProcess {
      */
     protected void unloadSections() {
 	super.unloadSections();
+
+	// the executable was kept open to load pages from
+	coff.close();
+
+	chargeTLBStats();
+	Lib.debug(dbgVM, "TLB: hits " + tlbHits
+		  + " (" + Stats.hitRate(tlbHits, tlbMisses) + ")"
+		  + ", misses " + tlbMisses
+		  + ", evictions " + tlbEvictions
+		  + "; page faults " + pageFaults + " of " + numPages
+		  + " pages");
     }    
 
+    /**
+     * Transfer data from this process's virtual memory to the specified
+     * array, first bringing in any pages of the range that have not been
+     * touched yet.
+     */
+    public int readVirtualMemory(int vaddr, byte[] data, int offset,
+				 int length) {
+	faultInRange(vaddr, length);
+
+	return super.readVirtualMemory(vaddr, data, offset, length);
+    }
+
+    /**
+     * Transfer data from the specified array to this process's virtual
+     * memory, first bringing in any pages of the range that have not been
+     * touched yet.
+     */
+    public int writeVirtualMemory(int vaddr, byte[] data, int offset,
+				  int length) {
+	faultInRange(vaddr, length);
+
+	return super.writeVirtualMemory(vaddr, data, offset, length);
+    }
+
+    /**
+     * Bring in every page of the specified range of virtual addresses that
+     * is not yet in memory, stopping if memory runs out. Addresses outside
+     * the address space are ignored.
+     */
+    private void faultInRange(int vaddr, int length) {
+	if (vaddr < 0 || length <= 0)
+	    return;
+
+	int first = Processor.pageFromAddress(vaddr);
+	int last = Math.min(Processor.pageFromAddress(vaddr + length - 1),
+			    numPages - 1);
+
+	for (int vpn=first; vpn<=last; vpn++) {
+	    if (!pageTable[vpn].valid && !faultIn(vpn))
+		break;
+	}
+    }
+
+    /**
+     * Give the specified virtual page a frame, and load its contents: the
+     * page of its COFF section, or zeros for the stack and arguments.
+     *
+     * @param	vpn	a virtual page of this process that is not in memory.
+     * @return	<tt>false</tt> if there is no free frame.
+     */
+    private boolean faultIn(int vpn) {
+	TranslationEntry entry = pageTable[vpn];
+	Lib.assertTrue(!entry.valid);
+
+	int ppn = UserKernel.frameTable.allocate(this, vpn);
+	if (ppn == -1) {
+	    Lib.debug(dbgVM, "\tno free frame for page " + vpn);
+	    return false;
+	}
+
+	CoffSection section = pageSections[vpn];
+	if (section != null)
+	    section.loadPage(vpn - section.getFirstVPN(), ppn);
+	else
+	    UserKernel.frameTable.zeroFill(ppn);
+
+	UserKernel.frameTable.setReferenced(ppn, true);
+
+	entry.ppn = ppn;
+	entry.used = false;
+	entry.dirty = false;
+	entry.valid = true;
+
+	pageFaults++;
+	return true;
+    }
+
+    /**
+     * Write the translation for the specified virtual page into the TLB,
+     * replacing the entry the processor chooses.
+     */
+    private void fillTLB(int vpn) {
+	Processor processor = Machine.processor();
+	int number = processor.chooseTLBEntry(vpn);
+
+	syncTLBEntry(number);
+	processor.writeTLBEntry(number, pageTable[vpn]);
+    }
+
+    /**
+     * Copy the used and dirty bits of the specified TLB entry back to this
+     * process's page table.
+     *
+     * @return	a copy of the TLB entry.
+     */
+    private TranslationEntry syncTLBEntry(int number) {
+	TranslationEntry entry = Machine.processor().readTLBEntry(number);
+
+	if (entry.valid && entry.vpn >= 0 && entry.vpn < numPages) {
+	    TranslationEntry page = pageTable[entry.vpn];
+	    if (page.valid && page.ppn == entry.ppn) {
+		page.used |= entry.used;
+		page.dirty |= entry.dirty;
+	    }
+	}
+
+	return entry;
+    }
+
     /**
      * Handle a user exception. Called by
      * <tt>UserKernel.exceptionHandler()</tt>. The
@@ -61,12 +269,43 @@ public class VMProcess extends UserProcess {
 	Processor processor = Machine.processor();
 
 	switch (cause) {
+	case Processor.exceptionTLBMiss:
+	case Processor.exceptionPageFault:
+	    int vpn = Processor.pageFromAddress(
+		processor.readRegister(Processor.regBadVAddr));
+
+	    if (vpn < 0 || vpn >= numPages) {
+		Lib.debug(dbgVM, "\tbad virtual page " + vpn);
+		handleExit(null);
+		break;
+	    }
+
+	    if (!pageTable[vpn].valid && !faultIn(vpn)) {
+		handleExit(null);
+		break;
+	    }
+
+	    // the faulting instruction is retried
+	    if (processor.hasTLB())
+		fillTLB(vpn);
+	    break;
+
 	default:
 	    super.handleException(cause);
 	    break;
 	}
     }
 	
+    /** The COFF section each virtual page is loaded from, or <tt>null</tt>. */
+    private CoffSection[] pageSections;
+    /** The number of pages brought into memory. */
+    private int pageFaults = 0;
+
+    /** TLB activity charged to this process so far. */
+    private long tlbHits = 0, tlbMisses = 0, tlbEvictions = 0;
+    /** The machine-wide TLB counters when this process was last charged. */
+    private long tlbHitsMark, tlbMissesMark, tlbEvictionsMark;
+
     private static final int pageSize = Processor.pageSize;
     private static final char dbgProcess = 'a';
     private static final char dbgVM = 'v';